@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RecycleBin;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+public class TFBatchTensorList extends ReferenceCountingBase implements TensorList {
+  private final int length;
+  @Nonnull
+  private final int[] dimensions;
+  private final int itemLength;
+  private double[] data;
+
+  public TFBatchTensorList(int length, @Nonnull int[] dimensions) {
+    this.length = length;
+    this.dimensions = Arrays.copyOf(dimensions, dimensions.length);
+    this.itemLength = Tensor.length(dimensions);
+    this.data = RecycleBin.DOUBLES.obtain((long) length * itemLength);
+  }
+
+  @Nonnull
+  public double[] getBatchData() {
+    assertAlive();
+    return data;
+  }
+
+  public int getOffset(int index) {
+    return index * itemLength;
+  }
+
+  @Nonnull
+  @Override
+  public int[] getDimensions() {
+    return Arrays.copyOf(dimensions, dimensions.length);
+  }
+
+  @Nonnull
+  @Override
+  public Tensor get(int i) {
+    assertAlive();
+    if (i < 0 || i >= length) throw new IndexOutOfBoundsException(Integer.toString(i));
+    Tensor item = new Tensor(dimensions);
+    RefSystem.arraycopy(data, getOffset(i), item.getData(), 0, itemLength);
+    return item;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<Tensor> stream() {
+    return RefIntStream.range(0, length).mapToObj(i -> get(i));
+  }
+
+  public synchronized void _free() {
+    if (null != data) {
+      RecycleBin.DOUBLES.recycle(data, data.length);
+      data = null;
+    }
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  TFBatchTensorList addRef() {
+    return (TFBatchTensorList) super.addRef();
+  }
+}
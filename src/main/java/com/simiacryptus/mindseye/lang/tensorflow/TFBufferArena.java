@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TFBufferArena {
+  public static final TFBufferArena INSTANCE = new TFBufferArena(
+      Integer.parseInt(RefSystem.getProperty("tensorflow.arena.maxPerClass", "4")),
+      Long.parseLong(RefSystem.getProperty("tensorflow.arena.maxBufferBytes", Long.toString(256L * 1024 * 1024))),
+      Long.parseLong(RefSystem.getProperty("tensorflow.arena.maxPooledBytes", Long.toString(256L * 1024 * 1024))));
+  private static final int MIN_CLASS_BITS = 12;
+
+  private final int maxPerClass;
+  private final long maxBufferBytes;
+  private final long maxPooledBytes;
+  private final Map<Integer, ConcurrentLinkedDeque<ByteBuffer>> pools = new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong bytesInUse = new AtomicLong();
+  private final AtomicLong bytesPooled = new AtomicLong();
+
+  public TFBufferArena(int maxPerClass, long maxBufferBytes, long maxPooledBytes) {
+    this.maxPerClass = maxPerClass;
+    this.maxBufferBytes = maxBufferBytes;
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
+  public long getBytesInUse() {
+    return bytesInUse.get();
+  }
+
+  public long getBytesPooled() {
+    return bytesPooled.get();
+  }
+
+  public double getHitRate() {
+    long hits = this.hits.get();
+    long total = hits + misses.get();
+    return 0 == total ? 0.0 : (double) hits / total;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Nonnull
+  public ByteBuffer obtain(long bytes) {
+    if (bytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Buffer too large: " + bytes);
+    int sizeClass = sizeClass(bytes);
+    ByteBuffer buffer = null;
+    if (sizeClass < 31) {
+      ConcurrentLinkedDeque<ByteBuffer> pool = pools.get(sizeClass);
+      buffer = null == pool ? null : pool.poll();
+    }
+    if (null == buffer) {
+      misses.incrementAndGet();
+      int capacity = sizeClass < 31 ? 1 << sizeClass : (int) bytes;
+      buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    } else {
+      hits.incrementAndGet();
+      bytesPooled.addAndGet(-buffer.capacity());
+    }
+    bytesInUse.addAndGet(buffer.capacity());
+    buffer.clear();
+    buffer.limit((int) bytes);
+    return buffer;
+  }
+
+  public void recycle(@Nonnull ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    bytesInUse.addAndGet(-capacity);
+    if (capacity > maxBufferBytes || Integer.bitCount(capacity) != 1) return;
+    ConcurrentLinkedDeque<ByteBuffer> pool = pools.computeIfAbsent(Integer.numberOfTrailingZeros(capacity),
+        k -> new ConcurrentLinkedDeque<>());
+    if (pool.size() >= maxPerClass) return;
+    if (bytesPooled.addAndGet(capacity) > maxPooledBytes) {
+      bytesPooled.addAndGet(-capacity);
+      return;
+    }
+    buffer.clear();
+    pool.push(buffer);
+  }
+
+  @Override
+  public String toString() {
+    return "TFBufferArena{" +
+        "hits=" + getHits() +
+        ", misses=" + getMisses() +
+        ", hitRate=" + getHitRate() +
+        ", bytesInUse=" + getBytesInUse() +
+        ", bytesPooled=" + getBytesPooled() +
+        '}';
+  }
+
+  private static int sizeClass(long bytes) {
+    if (bytes <= 1L << MIN_CLASS_BITS) return MIN_CLASS_BITS;
+    return 64 - Long.numberOfLeadingZeros(bytes - 1);
+  }
+}
@@ -19,9 +19,7 @@
 
 package com.simiacryptus.mindseye.lang.tensorflow;
 
-import com.google.common.primitives.Floats;
 import com.simiacryptus.mindseye.lang.Tensor;
-import com.simiacryptus.mindseye.lang.TensorArray;
 import com.simiacryptus.mindseye.lang.TensorList;
 import com.simiacryptus.ref.lang.RecycleBin;
 import com.simiacryptus.ref.wrappers.*;
@@ -30,25 +28,41 @@ import org.jetbrains.annotations.NotNull;
 import org.tensorflow.DataType;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
-import java.util.stream.Stream;
+import java.util.concurrent.ForkJoinPool;
 
 public class TFIO {
+  private static volatile long parallelThreshold = Long
+      .parseLong(RefSystem.getProperty("tensorflow.io.parallelThreshold", Integer.toString(1 << 20)));
+
+  public static long getParallelThreshold() {
+    return parallelThreshold;
+  }
+
+  public static void setParallelThreshold(long parallelThreshold) {
+    TFIO.parallelThreshold = parallelThreshold;
+  }
 
   @NotNull
-  public static TensorArray getTensorList(org.tensorflow.Tensor<?> tensor) {
+  public static TFBatchTensorList getTensorList(org.tensorflow.Tensor<?> tensor) {
     return getTensorList(tensor, true);
   }
 
   @NotNull
-  public static TensorArray getTensorList(org.tensorflow.Tensor<?> tensor, boolean invertRanks) {
-    if (tensor.dataType() == DataType.DOUBLE) {
-      return getTensorArray_Double(tensor.expect(Double.class), tensor.shape(), invertRanks);
-    } else if (tensor.dataType() == DataType.FLOAT) {
-      return getTensorArray_Float(tensor.expect(Float.class), tensor.shape(), invertRanks);
-    } else {
-      throw new IllegalArgumentException(tensor.dataType().toString());
+  public static TFBatchTensorList getTensorList(org.tensorflow.Tensor<?> tensor, boolean invertRanks) {
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin("TFIO.getTensorList", "io");
+    try {
+      if (tensor.dataType() == DataType.DOUBLE) {
+        return getTensorList_Double(tensor.expect(Double.class), tensor.shape(), invertRanks);
+      } else if (tensor.dataType() == DataType.FLOAT) {
+        return getTensorList_Float(tensor.expect(Float.class), tensor.shape(), invertRanks);
+      } else {
+        throw new IllegalArgumentException(tensor.dataType().toString());
+      }
+    } finally {
+      span.close();
     }
   }
 
@@ -75,22 +89,14 @@ public class TFIO {
 
   @NotNull
   public static org.tensorflow.Tensor<Float> getFloatTensor(@NotNull Tensor data, boolean invertRanks) {
-    final Tensor invertDimensions;
-    double[] buffer;
-    if (invertRanks) {
-      invertDimensions = data.invertDimensions();
-      buffer = invertDimensions.getData();
-    } else {
-      invertDimensions = null;
-      buffer = data.getData();
-    }
-    org.tensorflow.Tensor<Float> tfTensor = org.tensorflow.Tensor.create(
-        Util.toLong(data.getDimensions()),
-        FloatBuffer.wrap(Util.getFloats(buffer))
-    );
-    if (null != invertDimensions)
-      invertDimensions.freeRef();
+    int[] dimensions = data.getDimensions();
+    int length = data.length();
+    ByteBuffer bytes = TFBufferArena.INSTANCE.obtain((long) length * Float.BYTES);
+    TFLayout.reverseAxes(data.getData(), 0, bytes.asFloatBuffer(), 0,
+        invertRanks ? Tensor.reverse(dimensions) : new int[]{length});
     data.freeRef();
+    org.tensorflow.Tensor<Float> tfTensor = org.tensorflow.Tensor.create(Float.class, Util.toLong(dimensions), bytes);
+    TFBufferArena.INSTANCE.recycle(bytes);
     return tfTensor;
   }
 
@@ -105,11 +111,17 @@ public class TFIO {
         RefLongStream.of(data.length()),
         RefArrays.stream(data.getDimensions()).mapToLong(x -> x)
     ).toArray();
-    double[] buffer = getDoubles(data, invertRanks);
-    org.tensorflow.Tensor<Float> tensor = org.tensorflow.Tensor.create(shape,
-        FloatBuffer.wrap(Util.getFloats(buffer)));
-    RecycleBin.DOUBLES.recycle(buffer, buffer.length);
-    return tensor;
+    long elements = (long) data.length() * Tensor.length(data.getDimensions());
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin("TFIO.getFloatTensor", "io");
+    try {
+      ByteBuffer bytes = TFBufferArena.INSTANCE.obtain(elements * Float.BYTES);
+      putFloats(data, invertRanks, bytes.asFloatBuffer());
+      org.tensorflow.Tensor<Float> tensor = org.tensorflow.Tensor.create(Float.class, shape, bytes);
+      TFBufferArena.INSTANCE.recycle(bytes);
+      return tensor;
+    } finally {
+      span.close();
+    }
   }
 
   @NotNull
@@ -122,22 +134,14 @@ public class TFIO {
 
   @NotNull
   public static org.tensorflow.Tensor<Double> getDoubleTensor(@NotNull Tensor data, boolean invertRanks) {
-    double[] buffer;
-    final Tensor invertDimensions;
-    if (invertRanks) {
-      invertDimensions = data.invertDimensions();
-      buffer = invertDimensions.getData();
-    } else {
-      invertDimensions = null;
-      buffer = data.getData();
-    }
-    org.tensorflow.Tensor<Double> tfTensor = org.tensorflow.Tensor.create(
-        Util.toLong(data.getDimensions()),
-        DoubleBuffer.wrap(buffer)
-    );
+    int[] dimensions = data.getDimensions();
+    int length = data.length();
+    ByteBuffer bytes = TFBufferArena.INSTANCE.obtain((long) length * Double.BYTES);
+    TFLayout.reverseAxes(data.getData(), 0, bytes.asDoubleBuffer(), 0,
+        invertRanks ? Tensor.reverse(dimensions) : new int[]{length});
     data.freeRef();
-    if (null != invertDimensions)
-      invertDimensions.freeRef();
+    org.tensorflow.Tensor<Double> tfTensor = org.tensorflow.Tensor.create(Double.class, Util.toLong(dimensions), bytes);
+    TFBufferArena.INSTANCE.recycle(bytes);
     return tfTensor;
   }
 
@@ -155,194 +159,107 @@ public class TFIO {
         RefLongStream.of(data.length()),
         RefArrays.stream(data.getDimensions()).mapToLong(x -> x)
     ).toArray();
-    double[] buffer = getDoubles(data, invertRanks);
-    org.tensorflow.Tensor<Double> tensor = org.tensorflow.Tensor.create(shape, DoubleBuffer.wrap(buffer));
-    RecycleBin.DOUBLES.recycle(buffer, buffer.length);
-    return tensor;
-  }
-
-  private static void free(Object obj) {
-    if (obj instanceof double[]) {
-      double[] doubles = (double[]) obj;
-      RecycleBin.DOUBLES.recycle(doubles, doubles.length);
-    } else if (obj instanceof float[]) {
-      float[] floats = (float[]) obj;
-      RecycleBin.FLOATS.recycle(floats, floats.length);
-    } else {
-      RefArrays.stream((Object[]) obj).forEach(x -> free(x));
-    }
-  }
-
-  private static Object createFloatArray(@NotNull long[] shape) {
-    if (shape.length == 1) {
-      return RecycleBin.FLOATS.obtain(shape[0]);
-    } else if (shape.length == 2) {
-      return RefIntStream.range(0, (int) shape[0]).mapToObj(i -> new float[(int) shape[1]])
-          .toArray(s -> new float[s][]);
-    } else if (shape.length == 3) {
-      return RefIntStream.range(0, (int) shape[0]).mapToObj(i -> RefIntStream.range(0, (int) shape[1])
-          .mapToObj(j -> new float[(int) shape[2]]).toArray(s -> new float[s][])).toArray(s -> new float[s][][]);
-    } else if (shape.length == 4) {
-      return RefIntStream.range(0, (int) shape[0])
-          .mapToObj(i -> RefIntStream
-              .range(0, (int) shape[1]).mapToObj(j -> RefIntStream.range(0, (int) shape[2])
-                  .mapToObj(k -> new float[(int) shape[3]]).toArray(s -> new float[s][]))
-              .toArray(s -> new float[s][][]))
-          .toArray(s -> new float[s][][][]);
-    } else if (shape.length == 5) {
-      return RefIntStream.range(0, (int) shape[0])
-          .mapToObj(i -> RefIntStream.range(0, (int) shape[1])
-              .mapToObj(j -> RefIntStream.range(0, (int) shape[2])
-                  .mapToObj(k -> RefIntStream.range(0, (int) shape[3]).mapToObj(l -> new float[(int) shape[4]])
-                      .toArray(s -> new float[s][]))
-                  .toArray(s -> new float[s][][]))
-              .toArray(s -> new float[s][][][]))
-          .toArray(s -> new float[s][][][][]);
-    } else if (shape.length == 6) {
-      return RefIntStream.range(0, (int) shape[0]).mapToObj(i -> RefIntStream.range(0, (int) shape[1])
-          .mapToObj(j -> RefIntStream.range(0, (int) shape[2])
-              .mapToObj(k -> RefIntStream.range(0, (int) shape[3])
-                  .mapToObj(l -> RefIntStream.range(0, (int) shape[4]).mapToObj(m -> new float[(int) shape[5]])
-                      .toArray(s -> new float[s][]))
-                  .toArray(s -> new float[s][][]))
-              .toArray(s -> new float[s][][][]))
-          .toArray(s -> new float[s][][][][])).toArray(s -> new float[s][][][][][]);
-    } else {
-      throw new RuntimeException("Rank " + shape.length);
-    }
-  }
-
-  private static Object createDoubleArray(@NotNull long[] shape) {
-    if (shape.length == 1) {
-      return RecycleBin.DOUBLES.obtain(shape[0]);
-    } else if (shape.length == 2) {
-      return RefIntStream.range(0, (int) shape[0]).mapToObj(i -> new double[(int) shape[1]])
-          .toArray(s -> new double[s][]);
-    } else if (shape.length == 3) {
-      return RefIntStream.range(0, (int) shape[0]).mapToObj(i -> RefIntStream.range(0, (int) shape[1])
-          .mapToObj(j -> new double[(int) shape[2]]).toArray(s -> new double[s][])).toArray(s -> new double[s][][]);
-    } else if (shape.length == 4) {
-      return RefIntStream.range(0, (int) shape[0])
-          .mapToObj(
-              i -> RefIntStream.range(0, (int) shape[1])
-                  .mapToObj(j -> RefIntStream.range(0, (int) shape[2]).mapToObj(k -> new double[(int) shape[3]])
-                      .toArray(s -> new double[s][]))
-                  .toArray(s -> new double[s][][]))
-          .toArray(s -> new double[s][][][]);
-    } else {
-      throw new RuntimeException("Rank " + shape.length);
+    long elements = (long) data.length() * Tensor.length(data.getDimensions());
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin("TFIO.getDoubleTensor", "io");
+    try {
+      ByteBuffer bytes = TFBufferArena.INSTANCE.obtain(elements * Double.BYTES);
+      putDoubles(data, invertRanks, bytes.asDoubleBuffer());
+      org.tensorflow.Tensor<Double> tensor = org.tensorflow.Tensor.create(Double.class, shape, bytes);
+      TFBufferArena.INSTANCE.recycle(bytes);
+      return tensor;
+    } finally {
+      span.close();
     }
   }
 
-  @NotNull
-  private static RefDoubleStream flattenDoubles(Object obj) {
-    if (obj instanceof double[]) {
-      return RefArrays.stream((double[]) obj);
-    } else if (obj instanceof Double) {
-      return RefDoubleStream.of((double) obj);
-    } else {
-      return RefArrays.stream((Object[]) obj).flatMapToDouble(obj1 -> flattenDoubles(obj1));
-    }
-  }
-
-  private static Stream<Float> flattenFloats(Object floats) {
-    if (floats instanceof float[]) {
-      float[] array = (float[]) floats;
-      return Floats.asList(array).stream();
-    } else {
-      return RefArrays.stream((Object[]) floats).flatMap(x -> flattenFloats(x));
-    }
+  private static void putDoubles(@NotNull TensorList data, boolean invertRanks, @NotNull DoubleBuffer target) {
+    int[] dimensions = data.getDimensions();
+    int itemLength = Tensor.length(dimensions);
+    int[] layout = invertRanks ? Tensor.reverse(dimensions) : new int[]{itemLength};
+    double[] batchData = getBatchData(data);
+    forEachPartition(data.length(), itemLength, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        if (null != batchData) {
+          TFLayout.reverseAxes(batchData, i * itemLength, target, i * itemLength, layout);
+        } else {
+          Tensor tensor = data.get(i);
+          TFLayout.reverseAxes(tensor.getData(), 0, target, i * itemLength, layout);
+          tensor.freeRef();
+        }
+      }
+    });
+    data.freeRef();
   }
 
-  private static double[] getDoubles(@NotNull TensorList data, boolean invertRanks) {
-    double[] buffer = RecycleBin.DOUBLES.obtain(data.length() * Tensor.length(data.getDimensions()));
-    DoubleBuffer inputBuffer = DoubleBuffer.wrap(buffer);
-    if (invertRanks) {
-      data.stream().map(tensor -> {
-        Tensor invertDimensions = tensor.invertDimensions();
-        tensor.freeRef();
-        return invertDimensions;
-      }).forEach(tensor -> {
-        inputBuffer.put(tensor.getData());
-        tensor.freeRef();
-      });
-    } else {
-      data.stream().forEach(tensor -> {
-        inputBuffer.put(tensor.getData());
-        tensor.freeRef();
-      });
-    }
+  private static void putFloats(@NotNull TensorList data, boolean invertRanks, @NotNull FloatBuffer target) {
+    int[] dimensions = data.getDimensions();
+    int itemLength = Tensor.length(dimensions);
+    int[] layout = invertRanks ? Tensor.reverse(dimensions) : new int[]{itemLength};
+    double[] batchData = getBatchData(data);
+    forEachPartition(data.length(), itemLength, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        if (null != batchData) {
+          TFLayout.reverseAxes(batchData, i * itemLength, target, i * itemLength, layout);
+        } else {
+          Tensor tensor = data.get(i);
+          TFLayout.reverseAxes(tensor.getData(), 0, target, i * itemLength, layout);
+          tensor.freeRef();
+        }
+      }
+    });
     data.freeRef();
-    return buffer;
   }
 
   @NotNull
-  private static TensorArray getTensorArray_Float(org.tensorflow.Tensor<Float> tensor, @NotNull long[] shape,
-                                                  boolean invertRanks) {
-    float[] doubles = getFloats(tensor);
+  private static TFBatchTensorList getTensorList_Float(org.tensorflow.Tensor<Float> tensor, @NotNull long[] shape,
+                                                       boolean invertRanks) {
+    float[] floats = getFloats(tensor);
     int[] dims = RefArrays.stream(shape).skip(1).mapToInt(x -> (int) x).toArray();
+    int itemLength = Tensor.length(dims);
+    int[] layout = invertRanks ? dims : new int[]{itemLength};
     int batches = (int) shape[0];
-    TensorArray resultData = new TensorArray(RefIntStream.range(0, batches).mapToObj(i -> {
-      int offset = i * Tensor.length(dims);
-      if (invertRanks) {
-        Tensor returnValue = new Tensor(Tensor.reverse(dims));
-        returnValue.set(j -> doubles[j + offset]);
-        Tensor invertDimensions = returnValue.invertDimensions();
-        returnValue.freeRef();
-        return invertDimensions;
-      } else {
-        Tensor returnValue = new Tensor(dims);
-        returnValue.set(j -> doubles[j + offset]);
-        return returnValue;
+    TFBatchTensorList resultData = new TFBatchTensorList(batches, dims);
+    double[] batchData = resultData.getBatchData();
+    forEachPartition(batches, itemLength, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        TFLayout.reverseAxes(floats, i * itemLength, batchData, i * itemLength, layout);
       }
-    }).toArray(i -> new Tensor[i]));
-    RecycleBin.FLOATS.recycle(doubles, doubles.length);
+    });
+    RecycleBin.FLOATS.recycle(floats, floats.length);
     return resultData;
   }
 
   @NotNull
   private static Tensor getTensor_Float(org.tensorflow.Tensor<Float> tensor, @NotNull long[] shape, boolean invertRanks) {
-    if (0 == tensor.numElements())
-      return new Tensor(RefArrays.stream(shape).mapToInt(x -> (int) x).toArray());
-    float[] doubles = getFloats(tensor);
     int[] dims = RefArrays.stream(shape).mapToInt(x -> (int) x).toArray();
-    if (invertRanks) {
-      Tensor returnValue = new Tensor(Tensor.reverse(dims));
-      returnValue.set(j -> doubles[j]);
-      RecycleBin.FLOATS.recycle(doubles, doubles.length);
-      Tensor invertDimensions = returnValue.invertDimensions();
-      returnValue.freeRef();
-      return invertDimensions;
-    } else {
-      Tensor returnValue = new Tensor(dims);
-      returnValue.set(j -> doubles[j]);
-      RecycleBin.FLOATS.recycle(doubles, doubles.length);
-      return returnValue;
-    }
+    if (0 == tensor.numElements())
+      return new Tensor(dims);
+    float[] floats = getFloats(tensor);
+    Tensor returnValue = new Tensor(dims);
+    TFLayout.reverseAxes(floats, 0, returnValue.getData(), 0, invertRanks ? dims : new int[]{floats.length});
+    RecycleBin.FLOATS.recycle(floats, floats.length);
+    return returnValue;
   }
 
   @NotNull
-  private static TensorArray getTensorArray_Double(org.tensorflow.Tensor<Double> tensor, @NotNull long[] shape,
-                                                   boolean invertRanks) {
-    double[] doubles = getDoubles(tensor);
+  private static TFBatchTensorList getTensorList_Double(org.tensorflow.Tensor<Double> tensor, @NotNull long[] shape,
+                                                        boolean invertRanks) {
     int[] dims = RefArrays.stream(shape).skip(1).mapToInt(x -> (int) x).toArray();
+    int itemLength = Tensor.length(dims);
     int batches = (int) shape[0];
-    TensorArray resultData = new TensorArray(RefIntStream.range(0, batches).mapToObj(i -> {
-      if (invertRanks) {
-        Tensor returnValue = new Tensor(Tensor.reverse(dims));
-        RefSystem.arraycopy(doubles, i * returnValue.length(), returnValue.getData(), 0,
-            returnValue.length());
-        Tensor invertDimensions = returnValue.invertDimensions();
-        returnValue.freeRef();
-        return invertDimensions;
-      } else {
-        Tensor returnValue = new Tensor(dims);
-        RefSystem.arraycopy(doubles, i * returnValue.length(), returnValue.getData(), 0,
-            returnValue.length());
-        return returnValue;
-      }
-    }).toArray(i -> new Tensor[i]));
-    RecycleBin.DOUBLES.recycle(doubles, doubles.length);
+    TFBatchTensorList resultData = new TFBatchTensorList(batches, dims);
+    double[] batchData = resultData.getBatchData();
+    if (invertRanks) {
+      double[] doubles = getDoubles(tensor);
+      forEachPartition(batches, itemLength, (from, to) -> {
+        for (int i = from; i < to; i++) {
+          TFLayout.reverseAxes(doubles, i * itemLength, batchData, i * itemLength, dims);
+        }
+      });
+      RecycleBin.DOUBLES.recycle(doubles, doubles.length);
+    } else {
+      tensor.writeTo(DoubleBuffer.wrap(batchData, 0, batches * itemLength));
+    }
     return resultData;
   }
 
@@ -350,25 +267,16 @@ public class TFIO {
   private static Tensor getTensor_Double(org.tensorflow.Tensor<Double> tensor, @NotNull long[] shape, boolean invertRanks) {
     double[] doubles = getDoubles(tensor);
     int[] dims = RefArrays.stream(shape).mapToInt(x -> (int) x).toArray();
-    if (invertRanks) {
-      Tensor returnValue = new Tensor(Tensor.reverse(dims));
-      RefSystem.arraycopy(doubles, 0, returnValue.getData(), 0, returnValue.length());
-      RecycleBin.DOUBLES.recycle(doubles, doubles.length);
-      Tensor invertDimensions = returnValue.invertDimensions();
-      returnValue.freeRef();
-      return invertDimensions;
-    } else {
-      Tensor returnValue = new Tensor(dims);
-      RefSystem.arraycopy(doubles, 0, returnValue.getData(), 0, returnValue.length());
-      RecycleBin.DOUBLES.recycle(doubles, doubles.length);
-      return returnValue;
-    }
+    Tensor returnValue = new Tensor(dims);
+    TFLayout.reverseAxes(doubles, 0, returnValue.getData(), 0,
+        invertRanks ? dims : new int[]{returnValue.length()});
+    RecycleBin.DOUBLES.recycle(doubles, doubles.length);
+    return returnValue;
   }
 
   private static double[] getDoubles(org.tensorflow.Tensor<Double> result) {
-    Object deepArray = result.copyTo(createDoubleArray(result.shape()));
-    double[] doubles = flattenDoubles(deepArray).toArray();
-    free(deepArray);
+    double[] doubles = RecycleBin.DOUBLES.obtain(result.numElements());
+    result.writeTo(DoubleBuffer.wrap(doubles));
     return doubles;
   }
 
@@ -376,10 +284,35 @@ public class TFIO {
   private static float[] getFloats(org.tensorflow.Tensor<Float> result) {
     if (0 == result.numElements())
       return new float[]{};
-    Object deepArray = result.copyTo(createFloatArray(result.shape()));
-    double[] doubles = flattenFloats(deepArray).mapToDouble(x -> x).toArray();
-    free(deepArray);
-    return Util.getFloats(doubles);
+    float[] floats = RecycleBin.FLOATS.obtain(result.numElements());
+    result.writeTo(FloatBuffer.wrap(floats));
+    return floats;
+  }
+
+  @Nullable
+  private static double[] getBatchData(@NotNull TensorList data) {
+    if (data instanceof TFBatchTensorList) {
+      return ((TFBatchTensorList) data).getBatchData();
+    } else if (data instanceof TFTensorList) {
+      return ((TFTensorList) data).getBatchData();
+    } else {
+      return null;
+    }
+  }
+
+  private static void forEachPartition(int rows, int itemLength, @NotNull RowRange range) {
+    int partitions = (long) rows * itemLength < parallelThreshold ? 1
+        : Math.min(rows, ForkJoinPool.getCommonPoolParallelism());
+    if (partitions <= 1) {
+      range.apply(0, rows);
+    } else {
+      RefIntStream.range(0, partitions).parallel().forEach(p -> range.apply(
+          (int) ((long) rows * p / partitions), (int) ((long) rows * (p + 1) / partitions)));
+    }
+  }
+
+  private interface RowRange {
+    void apply(int from, int to);
   }
 
 }
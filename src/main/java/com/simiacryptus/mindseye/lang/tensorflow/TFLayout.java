@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import javax.annotation.Nonnull;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Single-pass conversion between mindseye (first index fastest) and TensorFlow (last index fastest) layouts.
+ * Both directions are the same operation: a row-major array with dimensions {@code dims} is rewritten as a
+ * row-major array with the dimensions reversed. To go from a mindseye tensor with dimensions {@code d} to TF,
+ * pass {@code reverse(d)}; to go from a TF tensor with dimensions {@code d} back, pass {@code d}.
+ */
+public final class TFLayout {
+  private static final int BLOCK = 32;
+
+  private TFLayout() {
+  }
+
+  public static void reverseAxes(@Nonnull double[] src, int srcOffset, @Nonnull double[] dst, int dstOffset,
+                                 @Nonnull int[] dims) {
+    forEachRun(dims, srcOffset, dstOffset, (s, stride, d, n) -> {
+      if (1 == stride) {
+        System.arraycopy(src, s, dst, d, n);
+      } else {
+        for (int i = 0; i < n; i++) {
+          dst[d + i] = src[s + i * stride];
+        }
+      }
+    });
+  }
+
+  public static void reverseAxes(@Nonnull double[] src, int srcOffset, @Nonnull float[] dst, int dstOffset,
+                                 @Nonnull int[] dims) {
+    forEachRun(dims, srcOffset, dstOffset, (s, stride, d, n) -> {
+      for (int i = 0; i < n; i++) {
+        dst[d + i] = (float) src[s + i * stride];
+      }
+    });
+  }
+
+  public static void reverseAxes(@Nonnull float[] src, int srcOffset, @Nonnull double[] dst, int dstOffset,
+                                 @Nonnull int[] dims) {
+    forEachRun(dims, srcOffset, dstOffset, (s, stride, d, n) -> {
+      for (int i = 0; i < n; i++) {
+        dst[d + i] = src[s + i * stride];
+      }
+    });
+  }
+
+  public static void reverseAxes(@Nonnull double[] src, int srcOffset, @Nonnull DoubleBuffer dst, int dstOffset,
+                                 @Nonnull int[] dims) {
+    forEachRun(dims, srcOffset, dstOffset, (s, stride, d, n) -> {
+      if (1 == stride) {
+        DoubleBuffer view = dst.duplicate();
+        view.position(d);
+        view.put(src, s, n);
+      } else {
+        for (int i = 0; i < n; i++) {
+          dst.put(d + i, src[s + i * stride]);
+        }
+      }
+    });
+  }
+
+  public static void reverseAxes(@Nonnull double[] src, int srcOffset, @Nonnull FloatBuffer dst, int dstOffset,
+                                 @Nonnull int[] dims) {
+    forEachRun(dims, srcOffset, dstOffset, (s, stride, d, n) -> {
+      for (int i = 0; i < n; i++) {
+        dst.put(d + i, (float) src[s + i * stride]);
+      }
+    });
+  }
+
+  public static int length(@Nonnull int[] dims) {
+    int length = 1;
+    for (int dim : dims) {
+      length *= dim;
+    }
+    return length;
+  }
+
+  @Nonnull
+  private static int[] squeeze(@Nonnull int[] dims) {
+    return Arrays.stream(dims).filter(x -> x != 1).toArray();
+  }
+
+  @Nonnull
+  private static int[] strides(@Nonnull int[] dims) {
+    int[] strides = new int[dims.length];
+    int stride = 1;
+    for (int i = dims.length - 1; i >= 0; i--) {
+      strides[i] = stride;
+      stride *= dims[i];
+    }
+    return strides;
+  }
+
+  /**
+   * Walks the reversal as runs that are contiguous in the destination. After squeezing, source axis 0 becomes
+   * the fastest destination axis and the last source axis the slowest; those two are transposed in cache-sized
+   * blocks, once for each position of the axes in between, whatever the rank.
+   */
+  private static void forEachRun(@Nonnull int[] dims, int srcOffset, int dstOffset, @Nonnull Run run) {
+    int[] squeezed = squeeze(dims);
+    int length = length(squeezed);
+    int rank = squeezed.length;
+    if (0 == length) return;
+    if (rank <= 1) {
+      run.copy(srcOffset, 1, dstOffset, length);
+      return;
+    }
+    int[] strides = strides(squeezed);
+    int a = squeezed[0];
+    int c = squeezed[rank - 1];
+    int middle = length / (a * c);
+    int[] coords = new int[rank];
+    int srcMiddle = 0;
+    for (int dstMiddle = 0; dstMiddle < middle; dstMiddle++) {
+      for (int i0 = 0; i0 < a; i0 += BLOCK) {
+        int n = Math.min(a, i0 + BLOCK) - i0;
+        for (int k0 = 0; k0 < c; k0 += BLOCK) {
+          int k1 = Math.min(c, k0 + BLOCK);
+          for (int k = k0; k < k1; k++) {
+            run.copy(srcOffset + srcMiddle + k + i0 * strides[0], strides[0],
+                dstOffset + (k * middle + dstMiddle) * a + i0, n);
+          }
+        }
+      }
+      // Destination axes run in reverse source order, so the fastest middle destination axis is source axis 1
+      for (int axis = 1; axis < rank - 1; axis++) {
+        if (++coords[axis] < squeezed[axis]) {
+          srcMiddle += strides[axis];
+          break;
+        }
+        coords[axis] = 0;
+        srcMiddle -= strides[axis] * (squeezed[axis] - 1);
+      }
+    }
+  }
+
+  private interface Run {
+    void copy(int srcStart, int srcStride, int dstStart, int count);
+  }
+}
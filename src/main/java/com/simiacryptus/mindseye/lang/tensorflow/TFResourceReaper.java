@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+import com.simiacryptus.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TFResourceReaper {
+  private static final Logger log = LoggerFactory.getLogger(TFResourceReaper.class);
+  public static final TFResourceReaper INSTANCE = new TFResourceReaper(
+      Integer.parseInt(RefSystem.getProperty("tensorflow.reaper.queueSize", "256")),
+      Boolean.parseBoolean(RefSystem.getProperty("tensorflow.reaper.synchronous", "false")));
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final AtomicLong closed = new AtomicLong();
+  private volatile boolean synchronous;
+
+  public TFResourceReaper(int queueSize, boolean synchronous) {
+    this.synchronous = synchronous;
+    this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize), runnable -> {
+      Thread thread = new Thread(runnable, "tf-reaper");
+      thread.setDaemon(true);
+      return thread;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  public long getClosed() {
+    return closed.get();
+  }
+
+  public int getPending() {
+    return pending.get();
+  }
+
+  public long getPendingBytes() {
+    return pendingBytes.get();
+  }
+
+  public boolean isSynchronous() {
+    return synchronous;
+  }
+
+  public void setSynchronous(boolean synchronous) {
+    this.synchronous = synchronous;
+  }
+
+  public void close(long bytes, @Nonnull AutoCloseable... resources) {
+    close(synchronous, bytes, resources);
+  }
+
+  public void close(boolean synchronous, long bytes, @Nonnull AutoCloseable... resources) {
+    pending.incrementAndGet();
+    pendingBytes.addAndGet(bytes);
+    Runnable task = () -> {
+      try {
+        for (AutoCloseable resource : resources) {
+          try {
+            resource.close();
+          } catch (Exception e) {
+            log.warn("Error closing " + resource, e);
+          }
+        }
+      } finally {
+        closed.incrementAndGet();
+        pendingBytes.addAndGet(-bytes);
+        pending.decrementAndGet();
+      }
+    };
+    if (synchronous) {
+      task.run();
+    } else {
+      executor.execute(task);
+    }
+  }
+
+  public void drain() {
+    // Queue the marker directly: through execute(), a full queue would run it at once on this thread
+    CountDownLatch latch = new CountDownLatch(1);
+    try {
+      executor.prestartCoreThread();
+      executor.getQueue().put(latch::countDown);
+      latch.await();
+    } catch (InterruptedException e) {
+      throw Util.throwException(e);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TFTensor extends ReferenceCountingBase {
+  private static final Logger log = LoggerFactory.getLogger(TFTensor.class);
+  private static final Map<TFTensor, Throwable> allocations = new ConcurrentHashMap<>();
+  private static final AtomicLong liveCount = new AtomicLong();
+  private static final AtomicLong liveBytes = new AtomicLong();
+  private static volatile boolean tracking = Boolean
+      .parseBoolean(RefSystem.getProperty("tensorflow.trackTensors", "false"));
+
+  static {
+    if (tracking) {
+      Runtime.getRuntime().addShutdownHook(new Thread(TFTensor::reportLeaks, "tf-leak-report"));
+    }
+  }
+
+  @Nonnull
+  private final org.tensorflow.Tensor<?> tensor;
+  private final long bytes;
+
+  public TFTensor(@Nonnull org.tensorflow.Tensor<?> tensor) {
+    this.tensor = tensor;
+    this.bytes = tensor.numBytes();
+    liveCount.incrementAndGet();
+    liveBytes.addAndGet(bytes);
+    if (tracking) {
+      allocations.put(this, new Throwable("TF tensor " + tensor + " allocated"));
+    }
+  }
+
+  public static long getLiveBytes() {
+    return liveBytes.get();
+  }
+
+  public static long getLiveCount() {
+    return liveCount.get();
+  }
+
+  public static boolean isTracking() {
+    return tracking;
+  }
+
+  public static void setTracking(boolean tracking) {
+    TFTensor.tracking = tracking;
+    if (!tracking) {
+      allocations.clear();
+    }
+  }
+
+  @Nonnull
+  public static List<Throwable> getLeaks() {
+    return new ArrayList<>(allocations.values());
+  }
+
+  public static int reportLeaks() {
+    List<Throwable> leaks = getLeaks();
+    for (Throwable leak : leaks) {
+      log.warn("Unclosed TF tensor", leak);
+    }
+    return leaks.size();
+  }
+
+  @Nonnull
+  public org.tensorflow.Tensor<?> get() {
+    assertAlive();
+    return tensor;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public void _free() {
+    allocations.remove(this);
+    liveCount.decrementAndGet();
+    liveBytes.addAndGet(-bytes);
+    tensor.close();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  TFTensor addRef() {
+    return (TFTensor) super.addRef();
+  }
+}
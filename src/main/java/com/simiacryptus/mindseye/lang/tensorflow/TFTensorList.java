@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import org.tensorflow.DataType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+public class TFTensorList extends ReferenceCountingBase implements TensorList {
+  @Nonnull
+  private final TFTensor tensor;
+  private final boolean invertRanks;
+  private final int length;
+  @Nonnull
+  private final int[] dimensions;
+  @Nullable
+  private TFBatchTensorList batch;
+
+  public TFTensorList(@Nonnull org.tensorflow.Tensor<?> tensor) {
+    this(tensor, true);
+  }
+
+  public TFTensorList(@Nonnull org.tensorflow.Tensor<?> tensor, boolean invertRanks) {
+    if (tensor.dataType() != DataType.DOUBLE && tensor.dataType() != DataType.FLOAT) {
+      throw new IllegalArgumentException(tensor.dataType().toString());
+    }
+    long[] shape = tensor.shape();
+    this.tensor = new TFTensor(tensor);
+    this.invertRanks = invertRanks;
+    this.length = (int) shape[0];
+    this.dimensions = RefArrays.stream(shape).skip(1).mapToInt(x -> (int) x).toArray();
+  }
+
+  @Nonnull
+  @Override
+  public int[] getDimensions() {
+    return Arrays.copyOf(dimensions, dimensions.length);
+  }
+
+  public boolean isFloat() {
+    return tensor.get().dataType() == DataType.FLOAT;
+  }
+
+  public boolean isInvertRanks() {
+    return invertRanks;
+  }
+
+  @Nonnull
+  public org.tensorflow.Tensor<?> getNativeTensor() {
+    assertAlive();
+    return tensor.get();
+  }
+
+  @Nonnull
+  public double[] getBatchData() {
+    assertAlive();
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin("TFTensorList.getBatchData", "io");
+    try {
+      return getBatch().getBatchData();
+    } finally {
+      span.close();
+    }
+  }
+
+  @Nonnull
+  @Override
+  public Tensor get(int i) {
+    assertAlive();
+    if (i < 0 || i >= length) throw new IndexOutOfBoundsException(Integer.toString(i));
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin("TFTensorList.get", "io");
+    try {
+      return getBatch().get(i);
+    } finally {
+      span.close();
+    }
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<Tensor> stream() {
+    return RefIntStream.range(0, length).mapToObj(i -> get(i));
+  }
+
+  public synchronized void _free() {
+    tensor.freeRef();
+    if (null != batch) {
+      batch.freeRef();
+      batch = null;
+    }
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  TFTensorList addRef() {
+    return (TFTensorList) super.addRef();
+  }
+
+  @Nonnull
+  private synchronized TFBatchTensorList getBatch() {
+    if (null == batch) {
+      batch = TFIO.getTensorList(tensor.get(), invertRanks);
+    }
+    return batch;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import com.simiacryptus.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tensorflow.framework.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records a timeline in the Chrome trace-event format. Java-side work is recorded as begin/end spans on the
+ * calling thread; TF kernels from FULL_TRACE step stats are recorded as complete events under a separate
+ * process, one thread row per device and kernel thread. Each span reserves room for its end event when it begins,
+ * so a trace that hits {@code maxEvents} stops at a span boundary instead of leaving spans open. The recorder
+ * does not request traces itself; callers pass it the metadata of runs they already traced.
+ */
+public class TFTraceRecorder {
+  public static final TFTraceRecorder INSTANCE = new TFTraceRecorder(
+      Boolean.parseBoolean(RefSystem.getProperty("tensorflow.trace", "false")),
+      Integer.parseInt(RefSystem.getProperty("tensorflow.trace.maxEvents", "1000000")));
+  private static final Logger log = LoggerFactory.getLogger(TFTraceRecorder.class);
+  private static final int JAVA_PID = 0;
+  private static final int TF_PID = 1;
+  private static final Span NULL_SPAN = new Span(null, null, null);
+
+  private final ConcurrentLinkedQueue<JsonObject> events = new ConcurrentLinkedQueue<>();
+  private final Map<String, Integer> deviceThreads = new ConcurrentHashMap<>();
+  private final Map<Long, String> javaThreads = new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger deviceThreadIds = new AtomicInteger();
+  private final long epochMicros = System.currentTimeMillis() * 1000;
+  private final long epochNanos = System.nanoTime();
+  private final int maxEvents;
+  private volatile boolean enabled;
+
+  public TFTraceRecorder(boolean enabled, int maxEvents) {
+    this.enabled = enabled;
+    this.maxEvents = maxEvents;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public int getEventCount() {
+    return size.get();
+  }
+
+  @Nonnull
+  public Span begin(@Nonnull String name, @Nonnull String category) {
+    if (!enabled || !reserve(2)) return NULL_SPAN;
+    Thread thread = Thread.currentThread();
+    javaThreads.putIfAbsent(thread.getId(), thread.getName());
+    events.add(event(name, category, "B", JAVA_PID, thread.getId(), now()));
+    return new Span(this, name, category);
+  }
+
+  public void addStepStats(@Nonnull String name, @Nullable byte[] metadata) {
+    if (!enabled || null == metadata || metadata.length == 0) return;
+    try {
+      addStepStats(name, RunMetadata.parseFrom(metadata).getStepStats());
+    } catch (InvalidProtocolBufferException e) {
+      log.debug("Unreadable run metadata", e);
+    }
+  }
+
+  public void addStepStats(@Nonnull String name, @Nonnull StepStats stepStats) {
+    if (!enabled) return;
+    for (DeviceStepStats device : stepStats.getDevStatsList()) {
+      for (NodeExecStats node : device.getNodeStatsList()) {
+        String row = device.getDevice() + " #" + node.getThreadId();
+        int tid = deviceThreads.computeIfAbsent(row, k -> deviceThreadIds.getAndIncrement());
+        JsonObject event = event(node.getNodeName(), "kernel", "X", TF_PID, tid, node.getAllStartMicros());
+        event.addProperty("dur", Math.max(1, node.getAllEndRelMicros()));
+        JsonObject args = new JsonObject();
+        args.addProperty("run", name);
+        args.addProperty("label", node.getTimelineLabel());
+        long bytes = 0;
+        for (AllocatorMemoryUsed memory : node.getMemoryList()) {
+          bytes += memory.getTotalBytes();
+        }
+        args.addProperty("bytes", bytes);
+        event.add("args", args);
+        if (reserve(1)) events.add(event);
+      }
+    }
+  }
+
+  public void clear() {
+    events.clear();
+    size.set(0);
+  }
+
+  @Nonnull
+  public JsonObject toJson() {
+    JsonArray traceEvents = new JsonArray();
+    traceEvents.add(processName(JAVA_PID, "Java"));
+    traceEvents.add(processName(TF_PID, "TensorFlow"));
+    javaThreads.forEach((tid, name) -> traceEvents.add(threadName(JAVA_PID, tid, name)));
+    deviceThreads.forEach((name, tid) -> traceEvents.add(threadName(TF_PID, tid, name)));
+    List<JsonObject> snapshot = new ArrayList<>(events);
+    snapshot.forEach(traceEvents::add);
+    JsonObject json = new JsonObject();
+    json.add("traceEvents", traceEvents);
+    json.addProperty("displayTimeUnit", "ms");
+    return json;
+  }
+
+  public void write(@Nonnull File file) {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (null != parent) parent.mkdirs();
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      writer.write(toJson().toString());
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  private long now() {
+    return epochMicros + (System.nanoTime() - epochNanos) / 1000;
+  }
+
+  private boolean reserve(int count) {
+    if (size.addAndGet(count) > maxEvents) {
+      size.addAndGet(-count);
+      return false;
+    }
+    return true;
+  }
+
+  @Nonnull
+  private static JsonObject event(@Nonnull String name, @Nonnull String category, @Nonnull String phase, int pid,
+                                  long tid, long ts) {
+    JsonObject event = new JsonObject();
+    event.addProperty("name", name);
+    event.addProperty("cat", category);
+    event.addProperty("ph", phase);
+    event.addProperty("pid", pid);
+    event.addProperty("tid", tid);
+    event.addProperty("ts", ts);
+    return event;
+  }
+
+  @Nonnull
+  private static JsonObject processName(int pid, @Nonnull String name) {
+    JsonObject event = event("process_name", "__metadata", "M", pid, 0, 0);
+    JsonObject args = new JsonObject();
+    args.addProperty("name", name);
+    event.add("args", args);
+    return event;
+  }
+
+  @Nonnull
+  private static JsonObject threadName(int pid, long tid, @Nonnull String name) {
+    JsonObject event = event("thread_name", "__metadata", "M", pid, tid, 0);
+    JsonObject args = new JsonObject();
+    args.addProperty("name", name);
+    event.add("args", args);
+    return event;
+  }
+
+  public static class Span implements AutoCloseable {
+    @Nullable
+    private final TFTraceRecorder recorder;
+    @Nullable
+    private final String name;
+    @Nullable
+    private final String category;
+
+    private Span(@Nullable TFTraceRecorder recorder, @Nullable String name, @Nullable String category) {
+      this.recorder = recorder;
+      this.name = name;
+      this.category = category;
+    }
+
+    @Override
+    public void close() {
+      if (null == recorder) return;
+      recorder.events.add(event(name, category, "E", JAVA_PID, Thread.currentThread().getId(), recorder.now()));
+    }
+  }
+}
@@ -19,13 +19,12 @@
 
 package com.simiacryptus.mindseye.lang.tensorflow;
 
-import com.google.common.primitives.Floats;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.simiacryptus.lang.UncheckedConsumer;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.ref.wrappers.RefMap;
 import com.simiacryptus.ref.wrappers.RefSystem;
-import com.simiacryptus.tensorflow.GraphModel;
 import com.simiacryptus.tensorflow.TensorflowUtil;
 import com.simiacryptus.util.Util;
 import org.tensorflow.framework.*;
@@ -37,7 +36,10 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 public class TFUtil {
@@ -62,52 +64,97 @@ public class TFUtil {
     }
   }
 
+  public static long fingerprint(@Nonnull double[] data) {
+    long hash = 1125899906842597L;
+    for (double v : data) {
+      hash = 31 * hash + Double.doubleToLongBits(v);
+    }
+    return hash ^ data.length;
+  }
+
+  public static long fingerprint(@Nonnull RefMap<String, Tensor> weights) {
+    TreeMap<String, Long> fingerprints = new TreeMap<>();
+    weights.forEach((key, value) -> {
+      fingerprints.put(key, fingerprint(value.getData()));
+      value.freeRef();
+    });
+    weights.freeRef();
+    long hash = fingerprints.size();
+    for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+      hash = 31 * (31 * hash + entry.getKey().hashCode()) + entry.getValue();
+    }
+    return hash;
+  }
+
   @Nonnull
   public static GraphDef implantConstants(GraphDef graphDef, @Nonnull RefMap<String, Tensor> weights) {
-    graphDef = TensorflowUtil.editGraph(graphDef, graphBuilder -> {
-      weights.forEach((key, value) -> {
-        TensorflowUtil.editNode(graphBuilder, key, (NodeDef.Builder node) -> {
-          DataType type = node.getAttrMap().get("dtype").getType();
-          TensorProto.Builder tensor = TensorProto.newBuilder();
-          Tensor inverted = value.invertDimensions();
-          double[] data = inverted.getData();
-          //                double[] data = value.getData();
-          AttrValue shape = node.getAttrMap().get("shape");
-          if (null == shape || shape.getShape().getDimList().size() <= 0) {
-            TensorShapeProto.Builder shapeBuilder = TensorShapeProto.newBuilder();
-            for (int i : value.getDimensions()) {
-              shapeBuilder.addDim(TensorShapeProto.Dim.newBuilder().setSize(i).build());
-            }
-            tensor.setTensorShape(shapeBuilder.build());
-          } else {
-            tensor.setTensorShape(shape.getShape());
-          }
-          if (type == DataType.DT_DOUBLE) {
-            tensor.setDtype(type);
-            ByteBuffer bytes = GraphModel.putDoubles(data);
-            ByteString byteString = ByteString.copyFrom(bytes);
-            tensor.setTensorContent(byteString);
-            //                tensor.addAllDoubleVal(Arrays.stream(data).mapToObj(x -> x).collect(Collectors.toList()));
-          } else if (type == DataType.DT_FLOAT) {
-            tensor.setDtype(type);
-            float[] floats = Floats.toArray(Arrays.stream(data).mapToObj(x -> (float) x).collect(Collectors.toList()));
-            ByteString byteString = ByteString.copyFrom(GraphModel.putFloats(floats));
-            tensor.setTensorContent(byteString);
-            //                tensor.addAllFloatVal(Arrays.stream(data).mapToObj(x -> (float) x).collect(Collectors.toList()));
-          } else {
-            inverted.freeRef();
-            throw new UnsupportedOperationException(type.toString());
-          }
-          inverted.freeRef();
-          return node.removeAttr("shape").putAttr("value", AttrValue.newBuilder().setTensor(tensor.build()).build())
-              .setOp("Const");
-        });
+    Map<String, NodeDef> nodes = graphDef.getNodeList().stream()
+        .collect(Collectors.toMap(NodeDef::getName, node -> node, (a, b) -> a));
+    Map<String, Tensor> values = new HashMap<>();
+    weights.forEach((key, value) -> {
+      if (nodes.containsKey(key)) {
+        values.put(key, value);
+      } else {
         value.freeRef();
+      }
+    });
+    weights.freeRef();
+    Map<String, TensorProto> constants = values.entrySet().parallelStream().collect(Collectors.toMap(
+        entry -> entry.getKey(),
+        entry -> getConstant(nodes.get(entry.getKey()), entry.getValue())));
+    return TensorflowUtil.editGraph(graphDef, graphBuilder -> {
+      constants.forEach((key, tensor) -> {
+        TensorflowUtil.editNode(graphBuilder, key, (NodeDef.Builder node) -> node.removeAttr("shape")
+            .putAttr("value", AttrValue.newBuilder().setTensor(tensor).build())
+            .setOp("Const"));
       });
       return graphBuilder;
     });
-    weights.freeRef();
-    return graphDef;
+  }
+
+  @Nonnull
+  public static ByteString encodeDoubles(@Nonnull double[] data, @Nonnull int[] layout) {
+    ByteBuffer bytes = ByteBuffer.allocate(data.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    TFLayout.reverseAxes(data, 0, bytes.asDoubleBuffer(), 0, layout);
+    return UnsafeByteOperations.unsafeWrap(bytes.array());
+  }
+
+  @Nonnull
+  public static ByteString encodeFloats(@Nonnull double[] data, @Nonnull int[] layout) {
+    ByteBuffer bytes = ByteBuffer.allocate(data.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    TFLayout.reverseAxes(data, 0, bytes.asFloatBuffer(), 0, layout);
+    return UnsafeByteOperations.unsafeWrap(bytes.array());
+  }
+
+  @Nonnull
+  private static TensorProto getConstant(@Nonnull NodeDef node, @Nonnull Tensor value) {
+    try {
+      DataType type = node.getAttrMap().get("dtype").getType();
+      TensorProto.Builder tensor = TensorProto.newBuilder();
+      int[] dimensions = value.getDimensions();
+      AttrValue shape = node.getAttrMap().get("shape");
+      if (null == shape || shape.getShape().getDimList().size() <= 0) {
+        TensorShapeProto.Builder shapeBuilder = TensorShapeProto.newBuilder();
+        for (int i : dimensions) {
+          shapeBuilder.addDim(TensorShapeProto.Dim.newBuilder().setSize(i).build());
+        }
+        tensor.setTensorShape(shapeBuilder.build());
+      } else {
+        tensor.setTensorShape(shape.getShape());
+      }
+      if (type == DataType.DT_DOUBLE) {
+        tensor.setDtype(type);
+        tensor.setTensorContent(encodeDoubles(value.getData(), Tensor.reverse(dimensions)));
+      } else if (type == DataType.DT_FLOAT) {
+        tensor.setDtype(type);
+        tensor.setTensorContent(encodeFloats(value.getData(), Tensor.reverse(dimensions)));
+      } else {
+        throw new UnsupportedOperationException(type.toString());
+      }
+      return tensor.build();
+    } finally {
+      value.freeRef();
+    }
   }
 
 }
@@ -84,6 +84,7 @@ public class Conv2DLayer extends TFLayerBase {
 
   public void setPadding(String padding) {
     this.padding = padding;
+    invalidateGraph();
   }
 
   public int getStrideX() {
@@ -92,6 +93,7 @@ public class Conv2DLayer extends TFLayerBase {
 
   public void setStrideX(int strideX) {
     this.strideX = strideX;
+    invalidateGraph();
   }
 
   public int getStrideY() {
@@ -100,6 +102,7 @@ public class Conv2DLayer extends TFLayerBase {
 
   public void setStrideY(int strideY) {
     this.strideY = strideY;
+    invalidateGraph();
   }
 
   @Nullable
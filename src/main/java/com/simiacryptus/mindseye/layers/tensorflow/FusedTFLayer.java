@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.google.gson.JsonObject;
+import com.google.protobuf.ByteString;
+import com.simiacryptus.mindseye.lang.DataSerializer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefHashMap;
+import com.simiacryptus.ref.wrappers.RefMap;
+import org.tensorflow.framework.AttrValue;
+import org.tensorflow.framework.DataType;
+import org.tensorflow.framework.GraphDef;
+import org.tensorflow.framework.NodeDef;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * A chain of single-input TF layers stitched into one graph, so the whole chain runs as one Session.run.
+ * Each source graph is placed under its own scope; weight tensors are shared with the source layers and
+ * their deltas are reported under the source layers' weight ids.
+ */
+public class FusedTFLayer extends TFLayer {
+
+  private final Map<String, UUID> weightIds;
+
+  protected FusedTFLayer(byte[] graphDef, RefMap<String, Tensor> states, Map<String, UUID> weightIds,
+                         String output, String input) {
+    super(graphDef, states, output, input);
+    this.weightIds = weightIds;
+  }
+
+  protected FusedTFLayer(@Nonnull JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json, rs);
+    weightIds = new LinkedHashMap<>();
+    json.getAsJsonObject("weightIds").entrySet()
+        .forEach(entry -> weightIds.put(entry.getKey(), UUID.fromString(entry.getValue().getAsString())));
+  }
+
+  public static boolean canFuse(@Nonnull TFLayerBase layer) {
+    List<String> inputNodes = layer.getInputNodes();
+    String summaryOut = layer.getSummaryOut();
+    return null != inputNodes && inputNodes.size() == 1 && layer.invertWeights()
+        && (null == summaryOut || summaryOut.isEmpty())
+        && layer.getGraphDef().getLibrary().getFunctionCount() == 0;
+  }
+
+  public static boolean canFuse(@Nonnull TFLayerBase first, @Nonnull TFLayerBase next) {
+    return canFuse(next) && first.floatInputs() == next.floatInputs();
+  }
+
+  @Nonnull
+  public static FusedTFLayer fuse(@Nonnull List<? extends TFLayerBase> layers) {
+    assert !layers.isEmpty();
+    TFLayerBase first = layers.get(0);
+    TFLayerBase last = layers.get(layers.size() - 1);
+    String input = getScope(0) + first.getInputNodes().get(0);
+    String output = getScope(layers.size() - 1) + last.getOutputNode();
+    boolean isFloat = first.floatInputs();
+    boolean frozen = true;
+    RefMap<String, Tensor> states = new RefHashMap<>();
+    Map<String, UUID> weightIds = new LinkedHashMap<>();
+    for (int k = 0; k < layers.size(); k++) {
+      TFLayerBase layer = layers.get(k);
+      String scope = getScope(k);
+      RefMap<String, Tensor> weights = layer.getWeights();
+      assert weights != null;
+      weights.forEach((name, tensor) -> RefUtil.freeRef(states.put(scope + name, tensor)));
+      weights.freeRef();
+      layer.getTrainableWeights().forEach((name, id) -> weightIds.put(scope + name, id));
+      frozen &= layer.isFrozen();
+    }
+    FusedTFLayer fused = new FusedTFLayer(stitch(layers).toByteArray(), states, weightIds, output, input);
+    fused.setFloat(isFloat);
+    fused.setFrozen(frozen);
+    RefUtil.freeRef(layers.toArray(new TFLayerBase[]{}));
+    return fused;
+  }
+
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static FusedTFLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new FusedTFLayer(json, rs);
+  }
+
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
+    JsonObject json = super.getJson(resources, dataSerializer);
+    assert json != null;
+    JsonObject ids = new JsonObject();
+    weightIds.forEach((name, id) -> ids.addProperty(name, id.toString()));
+    json.add("weightIds", ids);
+    return json;
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  FusedTFLayer addRef() {
+    return (FusedTFLayer) super.addRef();
+  }
+
+  @Nonnull
+  @Override
+  protected Map<String, UUID> getTrainableWeights() {
+    Map<String, UUID> trainable = new LinkedHashMap<>();
+    if (isFrozen()) return trainable;
+    trainable.putAll(weightIds);
+    return trainable;
+  }
+
+  @Nonnull
+  private static String getScope(int index) {
+    return "fused_" + index + "/";
+  }
+
+  @Nonnull
+  private static GraphDef stitch(@Nonnull List<? extends TFLayerBase> layers) {
+    GraphDef.Builder builder = GraphDef.newBuilder();
+    String previousOutput = null;
+    for (int k = 0; k < layers.size(); k++) {
+      TFLayerBase layer = layers.get(k);
+      String scope = getScope(k);
+      GraphDef graphDef = layer.getGraphDef();
+      if (k == 0) {
+        builder.setVersions(graphDef.getVersions());
+      }
+      String inputNode = layer.getInputNodes().get(0);
+      for (NodeDef node : graphDef.getNodeList()) {
+        NodeDef.Builder scoped = node.toBuilder().setName(scope + node.getName()).clearInput();
+        for (String nodeInput : node.getInputList()) {
+          scoped.addInput(nodeInput.startsWith("^") ? "^" + scope + nodeInput.substring(1) : scope + nodeInput);
+        }
+        AttrValue colocation = node.getAttrMap().get("_class");
+        if (null != colocation) {
+          AttrValue.ListValue.Builder list = AttrValue.ListValue.newBuilder();
+          for (ByteString value : colocation.getList().getSList()) {
+            String location = value.toStringUtf8();
+            list.addS(ByteString.copyFromUtf8(location.startsWith("loc:@")
+                ? "loc:@" + scope + location.substring(5) : location));
+          }
+          scoped.putAttr("_class", AttrValue.newBuilder().setList(list).build());
+        }
+        if (null != previousOutput && node.getName().equals(inputNode)) {
+          DataType dtype = node.getAttrMap().get("dtype").getType();
+          scoped.setOp("Identity").clearAttr()
+              .putAttr("T", AttrValue.newBuilder().setType(dtype).build())
+              .addInput(previousOutput);
+        }
+        builder.addNode(scoped);
+      }
+      previousOutput = scope + layer.getOutputNode();
+    }
+    return builder.build();
+  }
+}
@@ -58,6 +58,7 @@ public class LRNLayer extends TFLayerBase {
 
   public void setAlpha(float alpha) {
     this.alpha = alpha;
+    invalidateGraph();
   }
 
   public float getBeta() {
@@ -66,6 +67,7 @@ public class LRNLayer extends TFLayerBase {
 
   public void setBeta(float beta) {
     this.beta = beta;
+    invalidateGraph();
   }
 
   public float getBias() {
@@ -74,6 +76,7 @@ public class LRNLayer extends TFLayerBase {
 
   public void setBias(float bias) {
     this.bias = bias;
+    invalidateGraph();
   }
 
   @Override
@@ -106,6 +109,7 @@ public class LRNLayer extends TFLayerBase {
 
   public void setRadius(long radius) {
     this.radius = radius;
+    invalidateGraph();
   }
 
   @Nullable
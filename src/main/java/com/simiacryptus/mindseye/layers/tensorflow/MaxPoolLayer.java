@@ -76,6 +76,7 @@ public class MaxPoolLayer extends TFLayerBase {
 
   public void setHeight(long height) {
     this.height = height;
+    invalidateGraph();
   }
 
   @Nonnull
@@ -96,6 +97,7 @@ public class MaxPoolLayer extends TFLayerBase {
 
   public void setPadding(String padding) {
     this.padding = padding;
+    invalidateGraph();
   }
 
   public long getStrideX() {
@@ -104,6 +106,7 @@ public class MaxPoolLayer extends TFLayerBase {
 
   public void setStrideX(long strideX) {
     this.strideX = strideX;
+    invalidateGraph();
   }
 
   public long getStrideY() {
@@ -112,6 +115,7 @@ public class MaxPoolLayer extends TFLayerBase {
 
   public void setStrideY(long strideY) {
     this.strideY = strideY;
+    invalidateGraph();
   }
 
   @Nullable
@@ -126,6 +130,7 @@ public class MaxPoolLayer extends TFLayerBase {
 
   public void setWidth(long width) {
     this.width = width;
+    invalidateGraph();
   }
 
   public boolean isSingleBatch() {
@@ -87,6 +87,7 @@ public class SummaryLayer extends TFLayerBase {
 
   public void setTag(String tag) {
     this.tag = tag;
+    invalidateGraph();
   }
 
   public boolean isSingleBatch() {
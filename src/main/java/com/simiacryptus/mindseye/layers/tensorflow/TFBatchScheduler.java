@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.ConstantResult;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Coalesces concurrent small-batch inference calls against one layer into batched evaluations. A batch is
+ * dispatched when it reaches the maximum size, when the oldest request has waited the maximum wait, or when
+ * the tightest deadline in the batch leaves only the expected run time.
+ */
+public class TFBatchScheduler extends ReferenceCountingBase {
+  private static final Logger log = LoggerFactory.getLogger(TFBatchScheduler.class);
+  private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Nonnull
+  private final TFLayerBase layer;
+  private final int maxBatchSize;
+  private final long maxWaitNanos;
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final Histogram queueDepth;
+  private final Histogram batchSizes;
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong deadlineMisses = new AtomicLong();
+  private final Thread dispatcher;
+  private volatile long runNanos = 0;
+  private volatile boolean closed = false;
+
+  public TFBatchScheduler(@Nonnull TFLayerBase layer, int maxBatchSize, long maxWait, @Nonnull TimeUnit unit) {
+    if (maxBatchSize < 1) throw new IllegalArgumentException("Batch size " + maxBatchSize);
+    List<String> inputNodes = layer.getInputNodes();
+    if (null == inputNodes || inputNodes.size() != 1) {
+      layer.freeRef();
+      throw new IllegalArgumentException("Batching requires a single-input layer");
+    }
+    this.layer = layer;
+    this.maxBatchSize = maxBatchSize;
+    this.maxWaitNanos = unit.toNanos(maxWait);
+    this.queueDepth = new Histogram(4 * maxBatchSize);
+    this.batchSizes = new Histogram(maxBatchSize);
+    this.dispatcher = new Thread(this::dispatch, "tf-batch-" + layer.getName());
+    this.dispatcher.setDaemon(true);
+    this.dispatcher.start();
+  }
+
+  @Nonnull
+  public Histogram getBatchSizes() {
+    return batchSizes;
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getDeadlineMisses() {
+    return deadlineMisses.get();
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  @Nonnull
+  public Histogram getQueueDepth() {
+    return queueDepth;
+  }
+
+  public long getRunNanos() {
+    return runNanos;
+  }
+
+  @Nonnull
+  public TensorList eval(@Nonnull TensorList input) {
+    return eval(input, 0, TimeUnit.NANOSECONDS);
+  }
+
+  @Nonnull
+  public TensorList eval(@Nonnull TensorList input, long timeout, @Nonnull TimeUnit unit) {
+    long now = System.nanoTime();
+    long deadline = timeout <= 0 ? Long.MAX_VALUE : now + unit.toNanos(timeout);
+    Request request = new Request(input, now, deadline);
+    if (closed) {
+      request.free();
+      throw new IllegalStateException("Scheduler closed");
+    }
+    queue.add(request);
+    if (closed && queue.remove(request)) {
+      request.free();
+      throw new IllegalStateException("Scheduler closed");
+    }
+    try {
+      return timeout <= 0 ? request.result.get() : request.result.get(timeout, unit);
+    } catch (TimeoutException e) {
+      if (request.result.completeExceptionally(e)) {
+        deadlineMisses.incrementAndGet();
+        throw Util.throwException(e);
+      }
+      return request.result.join();
+    } catch (ExecutionException e) {
+      throw Util.throwException(e.getCause());
+    } catch (InterruptedException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  public void _free() {
+    closed = true;
+    dispatcher.interrupt();
+    try {
+      dispatcher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<Request> pending = new ArrayList<>();
+    queue.drainTo(pending);
+    fail(pending, new IllegalStateException("Scheduler closed"));
+    layer.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  TFBatchScheduler addRef() {
+    return (TFBatchScheduler) super.addRef();
+  }
+
+  private void dispatch() {
+    Deque<Request> carry = new ArrayDeque<>();
+    List<Request> batch = new ArrayList<>();
+    while (!closed) {
+      try {
+        Request first = carry.isEmpty() ? queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS) : carry.poll();
+        if (null == first) continue;
+        batch.add(first);
+        int rows = first.rows;
+        long flushAt = Math.min(first.enqueued + maxWaitNanos, first.deadline - runNanos);
+        while (rows < maxBatchSize) {
+          long wait = flushAt - System.nanoTime();
+          Request next = wait <= 0 ? queue.poll() : queue.poll(wait, TimeUnit.NANOSECONDS);
+          if (null == next) break;
+          if (rows + next.rows > maxBatchSize) {
+            carry.add(next);
+            break;
+          }
+          batch.add(next);
+          rows += next.rows;
+          flushAt = Math.min(flushAt, next.deadline - runNanos);
+        }
+        queueDepth.record(queue.size());
+        run(batch);
+        batch.clear();
+      } catch (InterruptedException e) {
+        break;
+      } catch (Throwable e) {
+        log.warn("Batch dispatch failed", e);
+        fail(batch, e);
+      }
+    }
+    // An interrupt can land while a batch is filling; those requests have already left the queue
+    fail(batch, new IllegalStateException("Scheduler closed"));
+    fail(carry, new IllegalStateException("Scheduler closed"));
+  }
+
+  private static void fail(@Nonnull Collection<Request> requests, @Nonnull Throwable e) {
+    for (Request request : requests) {
+      request.result.completeExceptionally(e);
+      request.free();
+    }
+    requests.clear();
+  }
+
+  private void run(@Nonnull List<Request> batch) {
+    long now = System.nanoTime();
+    List<Request> live = new ArrayList<>();
+    List<Tensor> rows = new ArrayList<>();
+    for (Request request : batch) {
+      if (request.deadline < now || request.result.isDone()) {
+        request.result.completeExceptionally(new TimeoutException("Deadline passed before dispatch"));
+        request.free();
+        continue;
+      }
+      for (int i = 0; i < request.rows; i++) {
+        rows.add(request.input.get(i));
+      }
+      request.free();
+      live.add(request);
+    }
+    if (live.isEmpty()) return;
+    batchSizes.record(rows.size());
+    batches.incrementAndGet();
+    TensorArray input = new TensorArray(rows.toArray(new Tensor[]{}));
+    TensorList output;
+    try {
+      Result result = layer.eval(new ConstantResult(input.addRef()));
+      if (null == result) throw new IllegalStateException("No result from " + layer.getName());
+      output = result.getData();
+      result.freeRef();
+    } catch (Throwable e) {
+      live.forEach(request -> request.result.completeExceptionally(e));
+      return;
+    } finally {
+      input.freeRef();
+    }
+    long elapsed = System.nanoTime() - now;
+    runNanos = 0 == runNanos ? elapsed : (runNanos * 7 + elapsed) / 8;
+    int offset = 0;
+    for (Request request : live) {
+      Tensor[] tensors = new Tensor[request.rows];
+      for (int i = 0; i < tensors.length; i++) {
+        tensors[i] = output.get(offset + i);
+      }
+      offset += tensors.length;
+      TensorArray split = new TensorArray(tensors);
+      if (!request.result.complete(split)) {
+        split.freeRef();
+      }
+    }
+    output.freeRef();
+  }
+
+  public static class Histogram {
+    private final AtomicLongArray counts;
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public Histogram(int maxValue) {
+      this.counts = new AtomicLongArray(maxValue + 1);
+    }
+
+    public long getCount() {
+      return total.get();
+    }
+
+    @Nonnull
+    public long[] getCounts() {
+      long[] snapshot = new long[counts.length()];
+      for (int i = 0; i < snapshot.length; i++) {
+        snapshot[i] = counts.get(i);
+      }
+      return snapshot;
+    }
+
+    public double getMean() {
+      long count = total.get();
+      return 0 == count ? 0.0 : (double) sum.get() / count;
+    }
+
+    public int getPercentile(double percentile) {
+      long[] snapshot = getCounts();
+      long count = 0;
+      for (long c : snapshot) count += c;
+      long threshold = (long) Math.ceil(percentile * count);
+      long running = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        running += snapshot[i];
+        if (running >= threshold && running > 0) return i;
+      }
+      return snapshot.length - 1;
+    }
+
+    public void record(int value) {
+      counts.incrementAndGet(Math.max(0, Math.min(counts.length() - 1, value)));
+      total.incrementAndGet();
+      sum.addAndGet(value);
+    }
+
+    @Override
+    public String toString() {
+      return "Histogram{" +
+          "count=" + getCount() +
+          ", mean=" + getMean() +
+          ", p50=" + getPercentile(0.5) +
+          ", p99=" + getPercentile(0.99) +
+          '}';
+    }
+  }
+
+  private static class Request {
+    @Nullable
+    private TensorList input;
+    private final int rows;
+    private final long enqueued;
+    private final long deadline;
+    private final CompletableFuture<TensorList> result = new CompletableFuture<>();
+
+    private Request(@Nonnull TensorList input, long enqueued, long deadline) {
+      this.input = input;
+      this.rows = input.length();
+      this.enqueued = enqueued;
+      this.deadline = deadline;
+    }
+
+    private void free() {
+      if (null != input) {
+        input.freeRef();
+        input = null;
+      }
+    }
+  }
+}
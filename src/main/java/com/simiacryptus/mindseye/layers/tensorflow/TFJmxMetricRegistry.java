@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Default metric registry. Each metric is kept per layer class and published as a read-only MBean under
+ * {@code com.simiacryptus.mindseye.tensorflow}; global gauges share one MBean. Per-layer-id beans are opt-in
+ * and are unregistered when the last live layer with that id is freed.
+ */
+public class TFJmxMetricRegistry implements TFMetricRegistry {
+  public static final String DOMAIN = "com.simiacryptus.mindseye.tensorflow";
+  private static final Logger log = LoggerFactory.getLogger(TFJmxMetricRegistry.class);
+
+  @Nullable
+  private final MBeanServer server;
+  private final boolean perLayer;
+  private final Map<String, MetricsBean> classBeans = new ConcurrentHashMap<>();
+  private final Map<String, MetricsBean> layerBeans = new ConcurrentHashMap<>();
+  @Nonnull
+  private final MetricsBean globalBean;
+
+  public TFJmxMetricRegistry() {
+    this(ManagementFactory.getPlatformMBeanServer(),
+        Boolean.parseBoolean(RefSystem.getProperty("tensorflow.metrics.perLayer", "false")));
+  }
+
+  public TFJmxMetricRegistry(@Nullable MBeanServer server, boolean perLayer) {
+    this.server = server;
+    this.perLayer = perLayer;
+    this.globalBean = register(new MetricsBean("type=Global"));
+  }
+
+  public boolean isPerLayer() {
+    return perLayer;
+  }
+
+  @Override
+  public void count(@Nonnull String layerClass, @Nonnull String layerId, @Nonnull String metric, long amount) {
+    getClassBean(layerClass).getCounter(metric).addAndGet(amount);
+    if (perLayer) {
+      MetricsBean bean = layerBeans.get(layerId);
+      if (null != bean) bean.getCounter(metric).addAndGet(amount);
+    }
+  }
+
+  @Override
+  public void time(@Nonnull String layerClass, @Nonnull String layerId, @Nonnull String metric, long nanos) {
+    getClassBean(layerClass).getTimer(metric).record(nanos);
+    if (perLayer) {
+      MetricsBean bean = layerBeans.get(layerId);
+      if (null != bean) bean.getTimer(metric).record(nanos);
+    }
+  }
+
+  @Override
+  public void gauge(@Nonnull String metric, @Nonnull LongSupplier value) {
+    globalBean.gauges.put(metric, value);
+  }
+
+  @Override
+  public void acquire(@Nonnull String layerClass, @Nonnull String layerId) {
+    if (!perLayer) return;
+    layerBeans.compute(layerId, (id, bean) -> {
+      if (null == bean) bean = register(new MetricsBean(idScope(layerClass, layerId)));
+      bean.owners++;
+      return bean;
+    });
+  }
+
+  @Override
+  public void release(@Nonnull String layerClass, @Nonnull String layerId) {
+    if (!perLayer) return;
+    layerBeans.computeIfPresent(layerId, (id, bean) -> {
+      if (--bean.owners > 0) return bean;
+      unregister(bean);
+      return null;
+    });
+  }
+
+  @Nonnull
+  public Map<String, Number> getSnapshot(@Nonnull String layerClass) {
+    return getClassBean(layerClass).snapshot();
+  }
+
+  @Nonnull
+  public Map<String, Number> getSnapshot(@Nonnull String layerClass, @Nonnull String layerId) {
+    MetricsBean bean = layerBeans.get(layerId);
+    return null == bean ? new TreeMap<>() : bean.snapshot();
+  }
+
+  @Nonnull
+  public Map<String, Number> getGlobalSnapshot() {
+    return globalBean.snapshot();
+  }
+
+  @Nonnull
+  private static String classScope(@Nonnull String layerClass) {
+    return "type=LayerClass,class=" + ObjectName.quote(layerClass);
+  }
+
+  @Nonnull
+  private static String idScope(@Nonnull String layerClass, @Nonnull String layerId) {
+    return "type=Layer,class=" + ObjectName.quote(layerClass) + ",id=" + layerId;
+  }
+
+  @Nonnull
+  private MetricsBean getClassBean(@Nonnull String layerClass) {
+    MetricsBean bean = classBeans.get(layerClass);
+    if (null != bean) return bean;
+    return classBeans.computeIfAbsent(layerClass, k -> register(new MetricsBean(classScope(layerClass))));
+  }
+
+  @Nonnull
+  private MetricsBean register(@Nonnull MetricsBean bean) {
+    if (null != server) {
+      try {
+        ObjectName name = new ObjectName(DOMAIN + ":" + bean.scope);
+        if (!server.isRegistered(name)) {
+          server.registerMBean(bean, name);
+        }
+      } catch (JMException e) {
+        log.warn("Could not register metrics bean " + bean.scope, e);
+      }
+    }
+    return bean;
+  }
+
+  private void unregister(@Nonnull MetricsBean bean) {
+    if (null == server) return;
+    try {
+      ObjectName name = new ObjectName(DOMAIN + ":" + bean.scope);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      log.warn("Could not unregister metrics bean " + bean.scope, e);
+    }
+  }
+
+  public static class Timer {
+    private static final int SUB_BUCKETS = 8;
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+      long count = this.count.get();
+      return 0 == count ? 0.0 : (double) totalNanos.get() / count;
+    }
+
+    public long getPercentileNanos(double percentile) {
+      long count = this.count.get();
+      if (0 == count) return 0;
+      long threshold = Math.max(1, (long) Math.ceil(percentile * count));
+      long running = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        running += buckets.get(i);
+        if (running >= threshold) return Math.min(upperBound(i), maxNanos.get());
+      }
+      return maxNanos.get();
+    }
+
+    public void record(long nanos) {
+      nanos = Math.max(0, nanos);
+      buckets.incrementAndGet(bucket(nanos));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static int bucket(long nanos) {
+      if (nanos < SUB_BUCKETS) return (int) nanos;
+      int exp = 63 - Long.numberOfLeadingZeros(nanos);
+      int sub = (int) (nanos >>> (exp - 3)) & (SUB_BUCKETS - 1);
+      return (exp - 2) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) return bucket;
+      int exp = bucket / SUB_BUCKETS + 2;
+      int sub = bucket % SUB_BUCKETS;
+      return ((SUB_BUCKETS + sub + 1L) << (exp - 3)) - 1;
+    }
+  }
+
+  private static class MetricsBean implements DynamicMBean {
+    private final String scope;
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private int owners = 0;
+
+    private MetricsBean(String scope) {
+      this.scope = scope;
+    }
+
+    @Nonnull
+    public AtomicLong getCounter(@Nonnull String metric) {
+      return counters.computeIfAbsent(metric, k -> new AtomicLong());
+    }
+
+    @Nonnull
+    public Timer getTimer(@Nonnull String metric) {
+      return timers.computeIfAbsent(metric, k -> new Timer());
+    }
+
+    @Nonnull
+    public Map<String, Number> snapshot() {
+      Map<String, Number> snapshot = new TreeMap<>();
+      counters.forEach((name, counter) -> snapshot.put(name, counter.get()));
+      gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+      timers.forEach((name, timer) -> {
+        snapshot.put(name + ".count", timer.getCount());
+        snapshot.put(name + ".meanMs", timer.getMeanNanos() / 1e6);
+        snapshot.put(name + ".p50Ms", timer.getPercentileNanos(0.5) / 1e6);
+        snapshot.put(name + ".p95Ms", timer.getPercentileNanos(0.95) / 1e6);
+        snapshot.put(name + ".p99Ms", timer.getPercentileNanos(0.99) / 1e6);
+        snapshot.put(name + ".maxMs", timer.getMaxNanos() / 1e6);
+      });
+      return snapshot;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Number value = snapshot().get(attribute);
+      if (null == value) throw new AttributeNotFoundException(attribute);
+      return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Read-only attribute " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Number> snapshot = snapshot();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        Number value = snapshot.get(attribute);
+        if (null != value) list.add(new Attribute(attribute, value));
+      }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Number> snapshot = snapshot();
+      MBeanAttributeInfo[] attributes = snapshot.entrySet().stream()
+          .map(entry -> new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+              entry.getKey(), true, false, false))
+          .toArray(i -> new MBeanAttributeInfo[i]);
+      return new MBeanInfo(MetricsBean.class.getName(), "TensorFlow layer metrics: " + scope, attributes,
+          null, null, null);
+    }
+  }
+}
@@ -79,6 +79,7 @@ public class TFLayer extends TFLayerBase {
 
   public void setInputNodes(@Nullable List<String> inputNodes) {
     this.inputNodes = inputNodes;
+    invalidateGraph();
   }
 
   public String getOutputNode() {
@@ -87,6 +88,7 @@ public class TFLayer extends TFLayerBase {
 
   public void setOutputNode(String outputNode) {
     this.outputNode = outputNode;
+    invalidateGraph();
   }
 
   public String getSummaryOut() {
@@ -103,6 +105,7 @@ public class TFLayer extends TFLayerBase {
 
   public void setFloat(boolean aFloat) {
     isFloat = aFloat;
+    invalidateGraph();
   }
 
   @Nonnull
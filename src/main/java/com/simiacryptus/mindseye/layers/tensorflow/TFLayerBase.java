@@ -21,16 +21,16 @@ package com.simiacryptus.mindseye.layers.tensorflow;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.lang.tensorflow.TFIO;
+import com.simiacryptus.mindseye.lang.tensorflow.TFTensor;
+import com.simiacryptus.mindseye.lang.tensorflow.TFTensorList;
+import com.simiacryptus.mindseye.lang.tensorflow.TFTraceRecorder;
 import com.simiacryptus.mindseye.lang.tensorflow.TFUtil;
 import com.simiacryptus.ref.lang.RefUtil;
-import com.simiacryptus.ref.lang.ReferenceCountingBase;
 import com.simiacryptus.ref.wrappers.*;
 import com.simiacryptus.tensorflow.TensorboardEventWriter;
-import com.simiacryptus.tensorflow.TensorflowUtil;
 import com.simiacryptus.util.Util;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -38,23 +38,45 @@ import org.slf4j.LoggerFactory;
 import org.tensorflow.*;
 import org.tensorflow.framework.GraphDef;
 import org.tensorflow.framework.Summary;
-import org.tensorflow.op.Ops;
-import org.tensorflow.op.core.Placeholder;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 public abstract class TFLayerBase extends LayerBase {
   private static final Logger log = LoggerFactory.getLogger(TFLayer.class);
   @Nullable
   public static TensorboardEventWriter eventWriter = null;
+  private static final boolean EAGER_GRADIENTS = Boolean
+      .parseBoolean(RefSystem.getProperty("tensorflow.eagerGradients", "true"));
+  private static final boolean RESIDENT_WEIGHTS = Boolean
+      .parseBoolean(RefSystem.getProperty("tensorflow.residentWeights", "false"));
 
   private final RefMap<String, Tensor> weights = new RefHashMap<>();
+  // Replaced whenever the weights may have changed, so resident sessions re-upload only after a write
+  private final AtomicReference<Object> weightsVersion = new AtomicReference<>(new Object());
+  @Nullable
+  private volatile TFSessionCache.Key sessionKey = null;
+  private boolean eagerGradients = EAGER_GRADIENTS;
+  private boolean recomputeForward = false;
+  private boolean inferenceOnly = false;
+  private boolean residentWeights = RESIDENT_WEIGHTS;
+  private int poolSize = 0;
+  private int poolThreads = 0;
+  private int shardSize = 0;
+  @Nullable
+  private TFSessionPool pool = null;
+  @Nullable
+  private TFSessionOptions sessionOptions = null;
+  @Nullable
+  private volatile GraphDef constGraph = null;
+  @Nullable
+  private volatile String constGraphKey = null;
+  @Nullable
+  private volatile TFMetrics.LayerMetrics metrics = null;
 
   public TFLayerBase(@Nonnull JsonObject json, Map<CharSequence, byte[]> rs) {
     super(json);
@@ -86,6 +108,7 @@ public abstract class TFLayerBase extends LayerBase {
 
   @Nullable
   public RefMap<String, Tensor> getWeights() {
+    weightsVersion.set(new Object());
     return weights == null ? null : weights.addRef();
   }
 
@@ -95,16 +118,22 @@ public abstract class TFLayerBase extends LayerBase {
         getInputNodes().toArray(new String[]{}));
   }
 
-  public @Nonnull
+  public synchronized @Nonnull
   GraphDef constGraph() {
-    return TFUtil.implantConstants(getGraphDef(), getWeights());
+    String key = getSessionKey().getDigest() + ":" + TFUtil.fingerprint(weights.addRef());
+    GraphDef graphDef = constGraph;
+    if (null == graphDef || !key.equals(constGraphKey)) {
+      graphDef = TFUtil.implantConstants(getGraphDef(), weights.addRef());
+      constGraph = graphDef;
+      constGraphKey = key;
+    }
+    return graphDef;
   }
 
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
     JsonObject json = getJsonStub();
-    RefMap<String, com.simiacryptus.mindseye.lang.Tensor> weights = getWeights();
-    assert weights != null;
+    RefMap<String, com.simiacryptus.mindseye.lang.Tensor> weights = this.weights.addRef();
     weights.forEach((key, tensor) -> {
       JsonElement tensorJson = tensor.getJson(resources, dataSerializer);
       tensor.freeRef();
@@ -117,6 +146,7 @@ public abstract class TFLayerBase extends LayerBase {
   @Nullable
   @Override
   public RefList<double[]> state() {
+    weightsVersion.set(new Object());
     RefCollection<Tensor> values = weights.values();
     RefList<double[]> dataList = values.stream().map(x -> {
       try {
@@ -132,7 +162,135 @@ public abstract class TFLayerBase extends LayerBase {
   @Nullable
   @Override
   public Result eval(@Nullable Result... inputs) {
-    return eval(new TFSession(addRef()), inputs);
+    getMetrics().count("eval.count", 1);
+    boolean inference = isInference(inputs);
+    TFSessionPool pool = getPool();
+    if (null == pool) {
+      return eval(TFSessionCache.INSTANCE.get(getSessionKey()), inference, inputs);
+    }
+    try {
+      int shards = getShardCount(pool.getSize(), inputs);
+      if (shards > 1) {
+        return evalSharded(pool.addRef(), shards, inference, inputs);
+      }
+      TFSession session = pool.checkout();
+      try {
+        return eval(session.addRef(), inference, inputs);
+      } finally {
+        pool.checkin(session);
+      }
+    } finally {
+      pool.freeRef();
+    }
+  }
+
+  @Nonnull
+  public TFSessionOptions getSessionOptions() {
+    return null == sessionOptions ? TFSessionOptions.getGlobal() : sessionOptions;
+  }
+
+  public void setSessionOptions(@Nullable TFSessionOptions sessionOptions) {
+    this.sessionOptions = sessionOptions;
+    invalidateGraph();
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  public synchronized void setPoolSize(int poolSize) {
+    this.poolSize = poolSize;
+    resetPool();
+  }
+
+  public int getPoolThreads() {
+    return poolThreads;
+  }
+
+  public synchronized void setPoolThreads(int poolThreads) {
+    this.poolThreads = poolThreads;
+    resetPool();
+  }
+
+  public int getShardSize() {
+    return shardSize;
+  }
+
+  public void setShardSize(int shardSize) {
+    this.shardSize = shardSize;
+  }
+
+  public boolean isEagerGradients() {
+    return eagerGradients;
+  }
+
+  public void setEagerGradients(boolean eagerGradients) {
+    this.eagerGradients = eagerGradients;
+  }
+
+  public boolean isResidentWeights() {
+    return residentWeights;
+  }
+
+  public void setResidentWeights(boolean residentWeights) {
+    this.residentWeights = residentWeights;
+    invalidateGraph();
+  }
+
+  @Nonnull
+  public TFMetrics.LayerMetrics getMetrics() {
+    TFMetrics.LayerMetrics metrics = this.metrics;
+    if (null == metrics) {
+      synchronized (this) {
+        metrics = this.metrics;
+        if (null == metrics) {
+          metrics = TFMetrics.forLayer(this);
+          this.metrics = metrics;
+        }
+      }
+    }
+    return metrics;
+  }
+
+  @Nonnull
+  public TFProfiler.LayerProfile getProfile() {
+    return TFProfiler.INSTANCE.getProfile(getId(), getClass().getSimpleName());
+  }
+
+  public boolean isInferenceOnly() {
+    return inferenceOnly;
+  }
+
+  public void setInferenceOnly(boolean inferenceOnly) {
+    this.inferenceOnly = inferenceOnly;
+  }
+
+  public boolean isRecomputeForward() {
+    return recomputeForward;
+  }
+
+  public void setRecomputeForward(boolean recomputeForward) {
+    this.recomputeForward = recomputeForward;
+  }
+
+  @Nonnull
+  public TFSessionCache.Key getSessionKey() {
+    TFSessionCache.Key key = sessionKey;
+    if (null == key || !key.getOptions().equals(getSessionOptions())) {
+      List<String> stateNames = new ArrayList<>();
+      RefSet<String> keySet = weights.keySet();
+      keySet.forEach(stateNames::add);
+      keySet.freeRef();
+      key = new TFSessionCache.Key(getGraphDef(), getOutputNode(), getInputNodes(), stateNames, floatInputs(),
+          isResidentWeights(), getId(), getSessionOptions());
+      sessionKey = key;
+    }
+    return key;
+  }
+
+  protected void invalidateGraph() {
+    sessionKey = null;
+    constGraph = null;
   }
 
   public void close() {
@@ -144,12 +302,15 @@ public abstract class TFLayerBase extends LayerBase {
 
   public @Nonnull
   GraphDef getConstGraph(GraphDef graphDef) {
-    return TFUtil.implantConstants(graphDef, getWeights());
+    return TFUtil.implantConstants(graphDef, weights.addRef());
   }
 
   public void _free() {
     if (null != weights)
       weights.freeRef();
+    resetPool();
+    if (null != metrics)
+      metrics.release();
     close();
     super._free();
   }
@@ -162,25 +323,186 @@ public abstract class TFLayerBase extends LayerBase {
   }
 
   @Nonnull
-  Result eval(@Nonnull TFSession tfsession, @Nonnull Result... inputs) {
-    RefMap<String, com.simiacryptus.mindseye.lang.Tensor> weights = getWeights();
-    assert weights != null;
-    RefSet<String> keySet = weights.keySet();
-    RefList<String> stateNames = keySet.stream().collect(RefCollectors.toList());
-    keySet.freeRef();
-    Session.Runner runner = tfsession.session.runner();
-    RefArrayList<org.tensorflow.Tensor<?>> tensors = setTensors(runner, weights, RefUtil.addRef(inputs));
-    boolean summaryOut = run(runner);
-    TensorArray resultData = getOutput(runner, tensors, summaryOut);
-    Accumulator accumulator = new Accumulator(runner, summaryOut ? 2 : 1, stateNames, this.getId(), this.getWeights(),
-        this.getOutputNode(), this.invertWeights(), this.getInputNodes(),
-        this.floatInputs(), tfsession.getGradients(), tfsession, inputs);
+  Result eval(@Nonnull TFSession tfsession, boolean inference, @Nonnull Result... inputs) {
+    RefMap<String, com.simiacryptus.mindseye.lang.Tensor> weights = this.weights.addRef();
+    List<String> stateNames = tfsession.key.getStateNames();
+    Map<String, UUID> weightIds = getTrainableWeights();
+    List<String> targets = getTargets(getInputNodes(), inputs, stateNames, weightIds);
+    Map<String, TFTensorList> borrowed = new HashMap<>();
+    Map<String, TFTensor> feeds = new HashMap<>();
+    final TensorList resultData;
+    try {
+      if (tfsession.key.isResidentWeights()) {
+        // Copies of a layer share its resident session; hold it until the run has read this copy's weights
+        synchronized (tfsession) {
+          syncWeights(getName(), tfsession, weights, weightsVersion.get(), invertWeights());
+          resultData = forward(tfsession, inference, targets, new RefHashMap<>(), feeds, borrowed,
+              RefUtil.addRef(inputs));
+        }
+      } else {
+        resultData = forward(tfsession, inference, targets, weights, feeds, borrowed, RefUtil.addRef(inputs));
+      }
+    } catch (RuntimeException e) {
+      freeFeeds(feeds, borrowed);
+      tfsession.freeRef();
+      RefUtil.freeRef(inputs);
+      throw e;
+    }
+    if (inference) {
+      freeFeeds(feeds, borrowed);
+      tfsession.freeRef();
+      RefUtil.freeRef(inputs);
+      return new Result(resultData, new NullAccumulator(), false);
+    }
+    Accumulator accumulator = new Accumulator(feeds, borrowed, stateNames, weightIds,
+        this.weights.addRef(), weightsVersion, this.getOutputNode(), this.invertWeights(), this.getInputNodes(),
+        this.floatInputs(), getName(), TFProfiler.INSTANCE.isEnabled() ? getProfile() : null, getMetrics(),
+        tfsession, inputs);
     return new Result(resultData, accumulator);
   }
 
   @Nonnull
   protected abstract Set<String> getDataKeys(JsonObject json);
 
+  @Nonnull
+  private TensorList forward(@Nonnull TFSession tfsession, boolean inference, @Nonnull List<String> targets,
+                             @Nonnull RefMap<String, Tensor> weights, @Nonnull Map<String, TFTensor> feeds,
+                             @Nonnull Map<String, TFTensorList> borrowed, @Nonnull Result[] inputs) {
+    Session.Runner runner = tfsession.session.runner();
+    setTensors(runner, weights, feeds, borrowed, inputs);
+    boolean summaryOut = run(runner);
+    List<String> savedActivations = inference || isRecomputeForward() ? Collections.emptyList()
+        : tfsession.getSavedActivations(targets, isEagerGradients());
+    for (String savedActivation : savedActivations) {
+      runner.fetch(savedActivation);
+    }
+    return getOutput(runner, summaryOut, savedActivations, feeds, borrowed);
+  }
+
+  @Nonnull
+  private static List<String> getTargets(@Nonnull List<String> inputNodes, @Nonnull Result[] inputs,
+                                         @Nonnull List<String> stateNames, @Nonnull Map<String, UUID> weightIds) {
+    List<String> targets = new ArrayList<>();
+    for (int i = 0; i < inputs.length; i++) {
+      if (inputs[i].isAlive()) targets.add(inputNodes.get(i));
+    }
+    for (String stateName : stateNames) {
+      if (weightIds.containsKey(stateName)) targets.add(stateName);
+    }
+    return targets;
+  }
+
+  private static void syncWeights(@Nonnull String name, @Nonnull TFSession tfsession,
+                                  @Nonnull RefMap<String, Tensor> weights, @Nonnull Object version,
+                                  boolean invertRanks) {
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin(name + " syncWeights", "weights");
+    try {
+      tfsession.syncWeights(weights, version, invertRanks);
+    } finally {
+      span.close();
+    }
+  }
+
+  @Nonnull
+  protected Map<String, UUID> getTrainableWeights() {
+    Map<String, UUID> weightIds = new LinkedHashMap<>();
+    if (isFrozen()) return weightIds;
+    RefSet<String> keySet = weights.keySet();
+    keySet.forEach(name -> weightIds.put(name, UUID.nameUUIDFromBytes((getId() + "_" + name).getBytes())));
+    keySet.freeRef();
+    return weightIds;
+  }
+
+  @Nullable
+  private synchronized TFSessionPool getPool() {
+    if (poolSize <= 0) return null;
+    TFSessionCache.Key key = getSessionKey();
+    if (null != pool && !pool.key.equals(key)) {
+      resetPool();
+    }
+    if (null == pool) {
+      int threads = poolThreads > 0 ? poolThreads
+          : Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+      pool = new TFSessionPool(key, poolSize, threads);
+    }
+    return pool.addRef();
+  }
+
+  private synchronized void resetPool() {
+    if (null != pool) {
+      pool.freeRef();
+      pool = null;
+    }
+  }
+
+  private int getShardCount(int poolSize, @Nonnull Result[] inputs) {
+    if (shardSize <= 0 || poolSize <= 1 || inputs.length == 0) return 1;
+    int length = -1;
+    for (Result input : inputs) {
+      TensorList data = input.getData();
+      int inputLength = data.length();
+      data.freeRef();
+      // Shards slice every input at the same offsets, so broadcast or ragged inputs run unsharded
+      if (length >= 0 && inputLength != length) return 1;
+      length = inputLength;
+    }
+    return Math.max(1, Math.min(poolSize, length / shardSize));
+  }
+
+  @Nonnull
+  private Result evalSharded(@Nonnull TFSessionPool pool, int shards, boolean inference, @Nonnull Result... inputs) {
+    TensorList[] inputData = new TensorList[inputs.length];
+    for (int i = 0; i < inputs.length; i++) {
+      inputData[i] = inputs[i].getData();
+    }
+    int length = inputData[0].length();
+    int[] offsets = new int[shards + 1];
+    for (int s = 0; s <= shards; s++) {
+      offsets[s] = (int) ((long) length * s / shards);
+    }
+    TensorList[][] inputDeltas = new TensorList[inputs.length][shards];
+    Result[] shardResults = RefIntStream.range(0, shards).parallel().mapToObj(s -> {
+      Result[] shardInputs = new Result[inputData.length];
+      for (int i = 0; i < inputData.length; i++) {
+        shardInputs[i] = new Result(slice(inputData[i].addRef(), offsets[s], offsets[s + 1]),
+            new ShardInputAccumulator(inputDeltas[i], s), inputs[i].isAlive());
+      }
+      TFSession session = pool.checkout();
+      try {
+        return eval(session.addRef(), inference, shardInputs);
+      } finally {
+        pool.checkin(session);
+      }
+    }).toArray(i -> new Result[i]);
+    RefUtil.freeRef(inputData);
+    pool.freeRef();
+    ArrayList<Tensor> outputs = new ArrayList<>();
+    for (Result shardResult : shardResults) {
+      TensorList data = shardResult.getData();
+      for (int j = 0; j < data.length(); j++) {
+        outputs.add(data.get(j));
+      }
+      data.freeRef();
+    }
+    TensorArray resultData = new TensorArray(outputs.toArray(new Tensor[]{}));
+    if (inference) {
+      RefUtil.freeRef(shardResults);
+      RefUtil.freeRef(inputs);
+      return new Result(resultData, new NullAccumulator(), false);
+    }
+    return new Result(resultData, new ShardedAccumulator(offsets, shardResults, inputDeltas, inputs));
+  }
+
+  @Nonnull
+  private static TensorArray slice(@Nonnull TensorList data, int from, int to) {
+    Tensor[] tensors = new Tensor[to - from];
+    for (int j = from; j < to; j++) {
+      tensors[j - from] = data.get(j);
+    }
+    data.freeRef();
+    return new TensorArray(tensors);
+  }
+
   protected boolean floatInputs() {
     return false;
   }
@@ -194,28 +516,38 @@ public abstract class TFLayerBase extends LayerBase {
     return summaryOut;
   }
 
-  @NotNull
-  private RefArrayList<org.tensorflow.Tensor<?>> setTensors(Session.Runner runner, RefMap<String, Tensor> weights,
-                                                            @Nonnull Result[] inputs) {
-    RefArrayList<org.tensorflow.Tensor<?>> tensors = new RefArrayList<>();
-    weights.forEach((nodeName, data) -> {
-      @Nonnull
-      org.tensorflow.Tensor<? extends Number> tensor;
-      boolean invertRanks = invertWeights();
-      if (floatInputs()) {
-        tensor = TFIO.getFloatTensor(data, invertRanks);
-      } else {
-        tensor = TFIO.getDoubleTensor(data, invertRanks);
-      }
-      runner.feed(nodeName, tensor);
-      tensors.add(tensor);
-    });
-    weights.freeRef();
+  private void setTensors(Session.Runner runner, RefMap<String, Tensor> weights, Map<String, TFTensor> tensors,
+                          Map<String, TFTensorList> borrowed, @Nonnull Result[] inputs) {
+    long start = System.nanoTime();
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin(getName() + " feedWeights", "weights");
+    try {
+      weights.forEach((nodeName, data) -> {
+        @Nonnull
+        org.tensorflow.Tensor<? extends Number> tensor;
+        boolean invertRanks = invertWeights();
+        if (floatInputs()) {
+          tensor = TFIO.getFloatTensor(data, invertRanks);
+        } else {
+          tensor = TFIO.getDoubleTensor(data, invertRanks);
+        }
+        runner.feed(nodeName, tensor);
+        tensors.put(nodeName, new TFTensor(tensor));
+      });
+    } finally {
+      weights.freeRef();
+      span.close();
+    }
     final List<String> inputNodes = getInputNodes();
     assert inputNodes != null;
     for (int i = 0; i < inputNodes.size(); i++) {
       String inputNode = inputNodes.get(i);
       TensorList data = inputs[i].getData();
+      TFTensorList nativeData = getNativeData(data, floatInputs());
+      if (null != nativeData) {
+        runner.feed(inputNode, nativeData.getNativeTensor());
+        borrowed.put(inputNode, nativeData);
+        continue;
+      }
       @Nonnull
       org.tensorflow.Tensor<? extends Number> tensor;
       if (floatInputs()) {
@@ -224,191 +556,362 @@ public abstract class TFLayerBase extends LayerBase {
         tensor = TFIO.getDoubleTensor(data, true);
       }
       runner.feed(inputNode, tensor);
-      tensors.add(tensor);
+      tensors.put(inputNode, new TFTensor(tensor));
     }
     RefUtil.freeRef(inputs);
-    return tensors;
+    TFMetrics.LayerMetrics metrics = getMetrics();
+    metrics.time("conversion", System.nanoTime() - start);
+    metrics.count("bytes.fed", getBytes(tensors, borrowed));
   }
 
-  @NotNull
-  private TensorArray getOutput(Session.Runner runner, RefArrayList<org.tensorflow.Tensor<?>> tensors,
-                                boolean summaryOut) {
-    Session.Run fwd;
-    try {
-      fwd = runner.runAndFetchMetadata();
-    } catch (IllegalArgumentException e) {
-      throw e;
+  private static long getBytes(@Nonnull Map<String, TFTensor> feeds, @Nonnull Map<String, TFTensorList> borrowed) {
+    long bytes = 0;
+    for (TFTensor tensor : feeds.values()) {
+      bytes += tensor.getBytes();
     }
-    org.tensorflow.Tensor<?> tensor = fwd.outputs.get(0);
-    TensorArray resultData = TFIO.getTensorList(tensor);
-    tensors.add(tensor);
-    tensors.freeRef();
-    if (summaryOut) {
-      final Summary summary;
-      try {
-        summary = Summary.parseFrom(fwd.outputs.get(1).expect(String.class).bytesValue());
-      } catch (InvalidProtocolBufferException e) {
-        throw Util.throwException(e);
+    for (TFTensorList data : borrowed.values()) {
+      bytes += data.getNativeTensor().numBytes();
+    }
+    return bytes;
+  }
+
+  private static void freeFeeds(@Nonnull Map<String, TFTensor> feeds, @Nonnull Map<String, TFTensorList> borrowed) {
+    feeds.values().forEach(tensor -> tensor.freeRef());
+    feeds.clear();
+    borrowed.values().forEach(data -> data.freeRef());
+    borrowed.clear();
+  }
+
+  @Nullable
+  private static TFTensorList getNativeData(@Nonnull TensorList data, boolean floatInputs) {
+    if (data instanceof TFTensorList) {
+      TFTensorList nativeData = (TFTensorList) data;
+      if (nativeData.isInvertRanks() && nativeData.isFloat() == floatInputs) {
+        return nativeData;
       }
+    }
+    return null;
+  }
+
+  @NotNull
+  private TensorList getOutput(Session.Runner runner, boolean summaryOut, List<String> savedActivations,
+                               Map<String, TFTensor> feeds, Map<String, TFTensorList> borrowed) {
+    List<String> inputNodes = getInputNodes();
+    Session.Run fwd = runAndFetch(runner, getName(), "forward",
+        TFProfiler.INSTANCE.isEnabled() ? getProfile() : null, getMetrics(),
+        () -> "class=" + getClass().getSimpleName() + ", output=" + getOutputNode() + ", summary=" + summaryOut
+            + ", " + TFSlowRunLog.describeFeeds(getFeedTensors(feeds, borrowed),
+            null == inputNodes || inputNodes.isEmpty() ? null : inputNodes.get(0)));
+    TensorList resultData = new TFTensorList(fwd.outputs.get(0));
+    TFTensor summaryTensor = summaryOut ? new TFTensor(fwd.outputs.get(1)) : null;
+    int fwdFetches = summaryOut ? 2 : 1;
+    for (int i = 0; i < savedActivations.size(); i++) {
+      feeds.put(savedActivations.get(i), new TFTensor(fwd.outputs.get(fwdFetches + i)));
+    }
+    if (null != summaryTensor) {
       try {
+        Summary summary = Summary.parseFrom(summaryTensor.get().expect(String.class).bytesValue());
         if (null != eventWriter)
           eventWriter.write(summary);
       } catch (IOException e) {
+        resultData.freeRef();
         throw Util.throwException(e);
+      } finally {
+        summaryTensor.freeRef();
       }
     }
     return resultData;
   }
 
-  static class TFSession extends ReferenceCountingBase {
-    @Nonnull
-    public final Graph graph;
-    public final Singleton<Output<?>[]> outputSingleton = new Singleton<>();
-    @Nonnull
-    public final Session session;
-    @Nullable
-    private final TFLayerBase parent;
-
-    public TFSession(@Nullable TFLayerBase parent) {
-      this.graph = new Graph();
-      this.parent = parent;
-      GraphDef graphDef = this.parent.getGraphDef();
-      TensorflowUtil.validate(graphDef);
-      graph.importGraphDef(graphDef.toByteArray());
-      this.session = new Session(graph);
-    }
-
-    @Nonnull
-    public Output<?>[] getGradients() {
-      return outputSingleton.getOrInit(() -> {
-        assert parent != null;
-        RefMap<String, com.simiacryptus.mindseye.lang.Tensor> weights = parent.getWeights();
-        assert weights != null;
-        RefSet<String> keySet = weights.keySet();
-        RefList<String> stateNames = keySet.stream().collect(RefCollectors.toList());
-        keySet.freeRef();
-        weights.freeRef();
-        Ops ops = Ops.create(graph);
-        String deltaOpName = parent.getOutputNode() + "_delta";
-        Class<? extends Number> dtype = parent.floatInputs() ? Float.class : Double.class;
-        ops.withName(deltaOpName).placeholder(dtype, Placeholder.shape(Shape.unknown()));
-        Output<?>[] temp_00_0007 = graph.addGradients("gradient",
-            new Output[]{TensorflowUtil.find(graph, parent.getOutputNode()).output(0)},
-            RefStream.concat(parent.getInputNodes().stream(), stateNames.stream())
-                .map(n -> TensorflowUtil.find(graph, n).output(0)).toArray(i -> new Output[i]),
-            new Output[]{TensorflowUtil.find(graph, deltaOpName).output(0)});
-        stateNames.freeRef();
-        return temp_00_0007;
-      });
+  @Nonnull
+  private static Session.Run runAndFetch(@Nonnull Session.Runner runner, @Nonnull String name, @Nonnull String phase,
+                                         @Nullable TFProfiler.LayerProfile profile,
+                                         @Nonnull TFMetrics.LayerMetrics metrics,
+                                         @Nonnull Supplier<String> details) {
+    boolean profiled = null != profile && null != TFProfiler.INSTANCE.sample();
+    boolean slowTraced = null != TFSlowRunLog.INSTANCE.getRunOptions(name);
+    boolean traced = TFTraceRecorder.INSTANCE.isEnabled();
+    // One FULL_TRACE run feeds every consumer of its metadata
+    if (profiled || slowTraced || traced) runner.setOptions(TFProfiler.FULL_TRACE);
+    TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin(name + " " + phase, "session");
+    Session.Run run;
+    long start = System.nanoTime();
+    try {
+      run = runner.runAndFetchMetadata();
+    } finally {
+      span.close();
+    }
+    long elapsed = System.nanoTime() - start;
+    metrics.time(phase + ".run", elapsed);
+    long fetched = 0;
+    for (org.tensorflow.Tensor<?> output : run.outputs) {
+      fetched += output.numBytes();
     }
+    metrics.count("bytes.fetched", fetched);
+    if (profiled) profile.record(phase, run.metadata);
+    if (traced) TFTraceRecorder.INSTANCE.addStepStats(name + " " + phase, run.metadata);
+    if (slowTraced) {
+      TFSlowRunLog.INSTANCE.recordTrace(name, phase, elapsed, run.metadata);
+    } else {
+      TFSlowRunLog.INSTANCE.record(name, phase, elapsed, details);
+    }
+    return run;
+  }
 
-    public void _free() {
-      if (null != parent)
-        parent.freeRef();
-      new Thread(() -> {
-        session.close();
-        graph.close();
-      }).start();
-      outputSingleton.freeRef();
-      super._free();
+  @Nonnull
+  private static Map<String, org.tensorflow.Tensor<?>> getFeedTensors(@Nonnull Map<String, TFTensor> feeds,
+                                                                     @Nonnull Map<String, TFTensorList> borrowed) {
+    Map<String, org.tensorflow.Tensor<?>> tensors = new HashMap<>();
+    feeds.forEach((name, tensor) -> tensors.put(name, tensor.get()));
+    borrowed.forEach((name, data) -> tensors.put(name, data.getNativeTensor()));
+    return tensors;
+  }
+
+  private boolean isInference(@Nonnull Result[] inputs) {
+    if (inferenceOnly) return true;
+    if (!isFrozen()) return false;
+    for (Result input : inputs) {
+      if (input.isAlive()) return false;
     }
+    return true;
+  }
 
-    @Nonnull
-    public @Override
-    @SuppressWarnings("unused")
-    TFSession addRef() {
-      return (TFSession) super.addRef();
+  private static class NullAccumulator extends Result.Accumulator {
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nullable TensorList delta) {
+      if (null != deltaBuffer)
+        deltaBuffer.freeRef();
+      if (null != delta)
+        delta.freeRef();
+    }
+  }
+
+  private static class ShardInputAccumulator extends Result.Accumulator {
+    private final TensorList[] slots;
+    private final int index;
+
+    public ShardInputAccumulator(TensorList[] slots, int index) {
+      this.slots = slots;
+      this.index = index;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nullable TensorList delta) {
+      if (null != deltaBuffer)
+        deltaBuffer.freeRef();
+      synchronized (slots) {
+        RefUtil.freeRef(slots[index]);
+        slots[index] = delta;
+      }
+    }
+  }
+
+  private static class ShardedAccumulator extends Result.Accumulator {
+    private final int[] offsets;
+    private final Result[] shardResults;
+    private final TensorList[][] inputDeltas;
+    private final Result[] inputs;
+
+    public ShardedAccumulator(int[] offsets, Result[] shardResults, TensorList[][] inputDeltas, Result... inputs) {
+      this.offsets = offsets;
+      this.shardResults = shardResults;
+      this.inputDeltas = inputDeltas;
+      this.inputs = inputs;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nullable TensorList delta) {
+      assert delta != null;
+      for (int s = 0; s < shardResults.length; s++) {
+        Result.Accumulator accumulator = shardResults[s].getAccumulator();
+        assert accumulator != null;
+        accumulator.accept(deltaBuffer == null ? null : deltaBuffer.addRef(),
+            slice(delta.addRef(), offsets[s], offsets[s + 1]));
+        accumulator.freeRef();
+      }
+      delta.freeRef();
+      for (int i = 0; i < inputs.length; i++) {
+        if (!inputs[i].isAlive()) continue;
+        TensorList[] slots = inputDeltas[i];
+        ArrayList<Tensor> rows = new ArrayList<>();
+        synchronized (slots) {
+          for (int s = 0; s < slots.length; s++) {
+            TensorList slot = slots[s];
+            assert slot != null;
+            for (int j = 0; j < slot.length(); j++) {
+              rows.add(slot.get(j));
+            }
+            slot.freeRef();
+            slots[s] = null;
+          }
+        }
+        Result.Accumulator accumulator = inputs[i].getAccumulator();
+        assert accumulator != null;
+        accumulator.accept(deltaBuffer == null ? null : deltaBuffer.addRef(),
+            new TensorArray(rows.toArray(new Tensor[]{})));
+        accumulator.freeRef();
+      }
+      if (null != deltaBuffer)
+        deltaBuffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      RefUtil.freeRef(shardResults);
+      for (TensorList[] slots : inputDeltas) {
+        RefUtil.freeRef(slots);
+      }
+      RefUtil.freeRef(inputs);
     }
   }
 
   private static class Accumulator extends Result.Accumulator {
 
-    private final Session.Runner runner;
-    private final int fwdFetches;
-    private final RefList<String> stateNames;
+    private final Map<String, TFTensor> feeds;
+    private final Map<String, TFTensorList> borrowed;
+    private final List<String> stateNames;
     private final Result[] inputs;
     private final TFSession tfsession;
     private RefMap<String, Tensor> weights;
+    private final AtomicReference<Object> weightsVersion;
     private String outputNode;
-    private UUID id;
+    private Map<String, UUID> weightIds;
     private boolean invertRanks;
     private List<String> inputNodes;
     private boolean floatInputs;
-    private Output<?>[] gradients;
-
-    public Accumulator(Session.Runner runner, int fwdFetches, RefList<String> stateNames, UUID id,
-                       RefMap<String, Tensor> weights, String outputNode, boolean invertRanks, List<String> inputNodes,
-                       boolean floatInputs, Output<?>[] gradients, TFSession tfsession, Result... inputs) {
-      this.runner = runner;
-      this.fwdFetches = fwdFetches;
+    private String layerName;
+    @Nullable
+    private TFProfiler.LayerProfile profile;
+    private TFMetrics.LayerMetrics metrics;
+
+    public Accumulator(Map<String, TFTensor> feeds, Map<String, TFTensorList> borrowed,
+                       List<String> stateNames, Map<String, UUID> weightIds,
+                       RefMap<String, Tensor> weights, AtomicReference<Object> weightsVersion, String outputNode,
+                       boolean invertRanks, List<String> inputNodes,
+                       boolean floatInputs, String layerName, @Nullable TFProfiler.LayerProfile profile,
+                       TFMetrics.LayerMetrics metrics, TFSession tfsession, Result... inputs) {
+      this.feeds = feeds;
+      this.borrowed = borrowed;
       this.stateNames = stateNames;
       this.inputs = inputs;
       this.weights = weights;
+      this.weightsVersion = weightsVersion;
       this.outputNode = outputNode;
-      this.id = id;
+      this.weightIds = weightIds;
       this.invertRanks = invertRanks;
       this.inputNodes = inputNodes;
       this.floatInputs = floatInputs;
-      this.gradients = gradients;
+      this.layerName = layerName;
+      this.profile = profile;
+      this.metrics = metrics;
       this.tfsession = tfsession;
     }
 
     @Override
     public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nullable TensorList deltaSignal) {
-      RefArrayList<org.tensorflow.Tensor<?>> feedbacktensors = new RefArrayList<>();
-      Output<?>[] gradients = this.gradients;
-      if (floatInputs) {
-        org.tensorflow.Tensor<Float> tensor = TFIO.getFloatTensor(deltaSignal == null ? null : deltaSignal.addRef());
-        runner.feed(outputNode + "_delta", tensor);
-        feedbacktensors.add(tensor);
-      } else {
-        org.tensorflow.Tensor<Double> tensor = TFIO.getDoubleTensor(deltaSignal == null ? null : deltaSignal.addRef());
-        runner.feed(outputNode + "_delta", tensor);
-        feedbacktensors.add(tensor);
-      }
-      if (null != deltaSignal)
-        deltaSignal.freeRef();
-      RefArrays.stream(gradients).forEach(output -> runner.fetch(output));
-      Session.Run back = runner.runAndFetchMetadata();
-      for (int i = 0; i < inputs.length; i++) {
-        org.tensorflow.Tensor<?> tensor = back.outputs.get(fwdFetches + i);
-        Result.Accumulator accumulator = inputs[i].getAccumulator();
-        assert accumulator != null;
-        accumulator.accept(deltaBuffer == null ? null : deltaBuffer.addRef(), TFIO.getTensorList(tensor));
-        accumulator.freeRef();
-        feedbacktensors.add(tensor);
-      }
-      for (int i = 0; i < stateNames.size(); i++) {
-        String weightNodeName = stateNames.get(i);
-        assert deltaBuffer != null;
-        Delta<UUID> uuidDelta = deltaBuffer.get(UUID.nameUUIDFromBytes((id + "_" + weightNodeName).getBytes()),
-            weights.get(weightNodeName));
-        org.tensorflow.Tensor<Number> numberTensor = (org.tensorflow.Tensor<Number>) back.outputs
-            .get(i + fwdFetches + inputNodes.size());
-        final Tensor t;
-        if (numberTensor.dataType() == DataType.FLOAT) {
-          t = TFIO.getTensor(numberTensor.expect(Float.class), invertRanks);
+      List<TFTensor> feedbacktensors = new ArrayList<>();
+      try {
+        List<String> targets = getTargets(inputNodes, inputs, stateNames, weightIds);
+        if (targets.isEmpty()) return;
+        int[] inputIndex = new int[inputs.length];
+        int stateOffset = 0;
+        for (int i = 0; i < inputs.length; i++) {
+          inputIndex[i] = inputs[i].isAlive() ? stateOffset++ : -1;
+        }
+        List<String> trainable = targets.subList(stateOffset, targets.size());
+        Output<?>[] gradients = tfsession.getGradients(targets);
+        Session.Runner runner = tfsession.session.runner();
+        feeds.forEach((name, tensor) -> runner.feed(name, tensor.get()));
+        borrowed.forEach((name, data) -> runner.feed(name, data.getNativeTensor()));
+        long start = System.nanoTime();
+        long fedBytes = getBytes(feeds, borrowed);
+        TFTensorList nativeDelta = null == deltaSignal ? null : getNativeData(deltaSignal, floatInputs);
+        final org.tensorflow.Tensor<?> deltaTensor;
+        if (null != nativeDelta) {
+          deltaTensor = nativeDelta.getNativeTensor();
+        } else {
+          TFTensor tensor = new TFTensor(floatInputs
+              ? TFIO.getFloatTensor(deltaSignal == null ? null : deltaSignal.addRef())
+              : TFIO.getDoubleTensor(deltaSignal == null ? null : deltaSignal.addRef()));
+          feedbacktensors.add(tensor);
+          deltaTensor = tensor.get();
+        }
+        runner.feed(outputNode + "_delta", deltaTensor);
+        fedBytes += deltaTensor.numBytes();
+        metrics.count("bytes.fed", fedBytes);
+        long conversionNanos = System.nanoTime() - start;
+        RefArrays.stream(gradients).forEach(output -> runner.fetch(output));
+        Supplier<String> details = () -> {
+          Map<String, org.tensorflow.Tensor<?>> feedTensors = getFeedTensors(feeds, borrowed);
+          feedTensors.put(outputNode + "_delta", deltaTensor);
+          return "class=" + metrics.getLayerClass() + ", output=" + outputNode + "_delta, gradients="
+              + gradients.length + ", " + TFSlowRunLog.describeFeeds(feedTensors, outputNode + "_delta");
+        };
+        Session.Run back;
+        if (tfsession.key.isResidentWeights()) {
+          synchronized (tfsession) {
+            syncWeights(layerName, tfsession, weights.addRef(), weightsVersion.get(), invertRanks);
+            back = runAndFetch(runner, layerName, "backward", profile, metrics, details);
+          }
         } else {
-          t = TFIO.getTensor(numberTensor.expect(Double.class), invertRanks);
+          back = runAndFetch(runner, layerName, "backward", profile, metrics, details);
+        }
+        TFTensorList[] inputDeltas = new TFTensorList[stateOffset];
+        for (int i = 0; i < back.outputs.size(); i++) {
+          if (i < stateOffset) {
+            inputDeltas[i] = new TFTensorList(back.outputs.get(i));
+          } else {
+            feedbacktensors.add(new TFTensor(back.outputs.get(i)));
+          }
+        }
+        for (int i = 0; i < inputs.length; i++) {
+          if (inputIndex[i] < 0) continue;
+          Result.Accumulator accumulator = inputs[i].getAccumulator();
+          assert accumulator != null;
+          accumulator.accept(deltaBuffer == null ? null : deltaBuffer.addRef(), inputDeltas[inputIndex[i]]);
+          accumulator.freeRef();
+        }
+        start = System.nanoTime();
+        TFTraceRecorder.Span span = TFTraceRecorder.INSTANCE.begin(layerName + " accumulateDeltas", "deltas");
+        try {
+          for (int i = 0; i < trainable.size(); i++) {
+            String weightNodeName = trainable.get(i);
+            assert deltaBuffer != null;
+            Delta<UUID> uuidDelta = deltaBuffer.get(weightIds.get(weightNodeName), weights.get(weightNodeName));
+            org.tensorflow.Tensor<?> numberTensor = back.outputs.get(stateOffset + i);
+            final Tensor t;
+            if (numberTensor.dataType() == DataType.FLOAT) {
+              t = TFIO.getTensor(numberTensor.expect(Float.class), invertRanks);
+            } else {
+              t = TFIO.getTensor(numberTensor.expect(Double.class), invertRanks);
+            }
+            assert uuidDelta != null;
+            uuidDelta.addInPlace(t);
+            uuidDelta.freeRef();
+          }
+          // The optimizer writes these deltas straight into the weight arrays, so the next sync must re-upload
+          if (!trainable.isEmpty()) weightsVersion.set(new Object());
+        } finally {
+          span.close();
         }
-        assert uuidDelta != null;
-        uuidDelta.addInPlace(t);
-        uuidDelta.freeRef();
+        metrics.time("conversion", conversionNanos + System.nanoTime() - start);
+      } finally {
+        if (null != deltaSignal)
+          deltaSignal.freeRef();
+        if (null != deltaBuffer)
+          deltaBuffer.freeRef();
+        feedbacktensors.forEach(tensor -> tensor.freeRef());
       }
-      if (null != deltaBuffer)
-        deltaBuffer.freeRef();
-      feedbacktensors.stream().forEach(tensor -> tensor.close());
-      feedbacktensors.freeRef();
     }
 
     public @SuppressWarnings("unused")
     void _free() {
       super._free();
+      freeFeeds(feeds, borrowed);
       weights.freeRef();
       RefUtil.freeRef(inputs);
       tfsession.freeRef();
-      if (null != stateNames)
-        stateNames.freeRef();
     }
   }
 }
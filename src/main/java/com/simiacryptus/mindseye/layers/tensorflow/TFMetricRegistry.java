@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import javax.annotation.Nonnull;
+import java.util.function.LongSupplier;
+
+public interface TFMetricRegistry {
+  TFMetricRegistry NONE = new TFMetricRegistry() {
+    @Override
+    public void count(@Nonnull String layerClass, @Nonnull String layerId, @Nonnull String metric, long amount) {
+    }
+
+    @Override
+    public void time(@Nonnull String layerClass, @Nonnull String layerId, @Nonnull String metric, long nanos) {
+    }
+
+    @Override
+    public void gauge(@Nonnull String metric, @Nonnull LongSupplier value) {
+    }
+  };
+
+  default void acquire(@Nonnull String layerClass, @Nonnull String layerId) {
+  }
+
+  default void release(@Nonnull String layerClass, @Nonnull String layerId) {
+  }
+
+  void count(@Nonnull String layerClass, @Nonnull String layerId, @Nonnull String metric, long amount);
+
+  void time(@Nonnull String layerClass, @Nonnull String layerId, @Nonnull String metric, long nanos);
+
+  void gauge(@Nonnull String metric, @Nonnull LongSupplier value);
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.tensorflow.TFBufferArena;
+import com.simiacryptus.mindseye.lang.tensorflow.TFTensor;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+
+public final class TFMetrics {
+  @Nonnull
+  private static volatile TFMetricRegistry registry = TFMetricRegistry.NONE;
+
+  static {
+    setRegistry("none".equals(RefSystem.getProperty("tensorflow.metrics", "jmx"))
+        ? TFMetricRegistry.NONE : new TFJmxMetricRegistry());
+  }
+
+  private TFMetrics() {
+  }
+
+  @Nonnull
+  public static TFMetricRegistry getRegistry() {
+    return registry;
+  }
+
+  public static synchronized void setRegistry(@Nonnull TFMetricRegistry registry) {
+    registry.gauge("sessionCache.hits", () -> TFSessionCache.INSTANCE.getHits());
+    registry.gauge("sessionCache.misses", () -> TFSessionCache.INSTANCE.getMisses());
+    registry.gauge("sessionCache.evictions", () -> TFSessionCache.INSTANCE.getEvictions());
+    registry.gauge("sessionCache.bytes", () -> TFSessionCache.INSTANCE.getBytes());
+    registry.gauge("nativeTensors.count", () -> TFTensor.getLiveCount());
+    registry.gauge("nativeTensors.bytes", () -> TFTensor.getLiveBytes());
+    registry.gauge("bufferArena.bytesInUse", () -> TFBufferArena.INSTANCE.getBytesInUse());
+    registry.gauge("bufferArena.bytesPooled", () -> TFBufferArena.INSTANCE.getBytesPooled());
+    TFMetrics.registry = registry;
+  }
+
+  @Nonnull
+  public static LayerMetrics forLayer(@Nonnull TFLayerBase layer) {
+    return new LayerMetrics(registry, layer.getClass().getSimpleName(), layer.getId().toString());
+  }
+
+  public static final class LayerMetrics {
+    @Nonnull
+    private final TFMetricRegistry owner;
+    @Nonnull
+    private final String layerClass;
+    @Nonnull
+    private final String layerId;
+
+    private LayerMetrics(@Nonnull TFMetricRegistry owner, @Nonnull String layerClass, @Nonnull String layerId) {
+      this.owner = owner;
+      this.layerClass = layerClass;
+      this.layerId = layerId;
+      owner.acquire(layerClass, layerId);
+    }
+
+    @Nonnull
+    public String getLayerClass() {
+      return layerClass;
+    }
+
+    @Nonnull
+    public String getLayerId() {
+      return layerId;
+    }
+
+    public void count(@Nonnull String metric, long amount) {
+      registry.count(layerClass, layerId, metric, amount);
+    }
+
+    public void time(@Nonnull String metric, long nanos) {
+      registry.time(layerClass, layerId, metric, nanos);
+    }
+
+    public void release() {
+      owner.release(layerClass, layerId);
+    }
+  }
+}
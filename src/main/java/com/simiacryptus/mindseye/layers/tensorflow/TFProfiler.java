@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tensorflow.framework.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class TFProfiler {
+  public static final TFProfiler INSTANCE = new TFProfiler(
+      Double.parseDouble(RefSystem.getProperty("tensorflow.profile.sampleRate", "0")));
+  private static final Logger log = LoggerFactory.getLogger(TFProfiler.class);
+  static final byte[] FULL_TRACE = RunOptions.newBuilder()
+      .setTraceLevel(RunOptions.TraceLevel.FULL_TRACE).build().toByteArray();
+
+  private final Map<UUID, LayerProfile> profiles = new ConcurrentHashMap<>();
+  private volatile double sampleRate;
+
+  public TFProfiler(double sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  public void setSampleRate(double sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  public boolean isEnabled() {
+    return sampleRate > 0;
+  }
+
+  @Nonnull
+  public Collection<LayerProfile> getProfiles() {
+    return new ArrayList<>(profiles.values());
+  }
+
+  @Nullable
+  public LayerProfile getProfile(@Nonnull UUID layerId) {
+    return profiles.get(layerId);
+  }
+
+  @Nonnull
+  public LayerProfile getProfile(@Nonnull UUID layerId, @Nonnull String layerClass) {
+    return profiles.computeIfAbsent(layerId, id -> new LayerProfile(id, layerClass));
+  }
+
+  public void reset() {
+    profiles.clear();
+  }
+
+  @Nullable
+  public byte[] sample() {
+    double sampleRate = this.sampleRate;
+    if (sampleRate <= 0) return null;
+    if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) return null;
+    return FULL_TRACE;
+  }
+
+  @Nonnull
+  public List<Map<CharSequence, Object>> getOpTable(int limit) {
+    List<Map<CharSequence, Object>> rows = new ArrayList<>();
+    for (LayerProfile profile : getProfiles()) {
+      profile.getByOpType().forEach((opType, stats) -> {
+        LinkedHashMap<CharSequence, Object> row = new LinkedHashMap<>();
+        row.put("Layer", profile.getLayerClass() + " " + profile.getLayerId());
+        row.put("Op", opType);
+        row.put("Count", stats.getCount());
+        row.put("Total ms", stats.getTotalMicros() / 1000.0);
+        row.put("Mean us", stats.getMeanMicros());
+        row.put("Bytes", stats.getTotalBytes());
+        rows.add(row);
+      });
+    }
+    rows.sort(Comparator.comparingDouble(row -> -(Double) row.get("Total ms")));
+    return rows.size() > limit ? new ArrayList<>(rows.subList(0, limit)) : rows;
+  }
+
+  public static class LayerProfile {
+    @Nonnull
+    private final UUID layerId;
+    @Nonnull
+    private final String layerClass;
+    private final Map<String, OpStats> byNode = new ConcurrentHashMap<>();
+    private final Map<String, OpStats> byOpType = new ConcurrentHashMap<>();
+    private final Map<String, OpStats> byPhase = new ConcurrentHashMap<>();
+
+    public LayerProfile(@Nonnull UUID layerId, @Nonnull String layerClass) {
+      this.layerId = layerId;
+      this.layerClass = layerClass;
+    }
+
+    @Nonnull
+    public UUID getLayerId() {
+      return layerId;
+    }
+
+    @Nonnull
+    public String getLayerClass() {
+      return layerClass;
+    }
+
+    @Nonnull
+    public Map<String, OpStats> getByNode() {
+      return new TreeMap<>(byNode);
+    }
+
+    @Nonnull
+    public Map<String, OpStats> getByOpType() {
+      return new TreeMap<>(byOpType);
+    }
+
+    @Nonnull
+    public Map<String, OpStats> getByPhase() {
+      return new TreeMap<>(byPhase);
+    }
+
+    public void record(@Nonnull String phase, @Nullable byte[] metadata) {
+      if (null == metadata || metadata.length == 0) return;
+      try {
+        record(phase, RunMetadata.parseFrom(metadata).getStepStats());
+      } catch (InvalidProtocolBufferException e) {
+        log.debug("Unreadable run metadata", e);
+      }
+    }
+
+    public void record(@Nonnull String phase, @Nonnull StepStats stepStats) {
+      long phaseMicros = 0;
+      long phaseBytes = 0;
+      for (DeviceStepStats device : stepStats.getDevStatsList()) {
+        for (NodeExecStats node : device.getNodeStatsList()) {
+          long micros = node.getAllEndRelMicros();
+          long bytes = 0;
+          for (AllocatorMemoryUsed memory : node.getMemoryList()) {
+            bytes += memory.getTotalBytes();
+          }
+          byNode.computeIfAbsent(node.getNodeName(), k -> new OpStats()).add(micros, bytes);
+          byOpType.computeIfAbsent(getOpType(node), k -> new OpStats()).add(micros, bytes);
+          phaseMicros += micros;
+          phaseBytes += bytes;
+        }
+      }
+      byPhase.computeIfAbsent(phase, k -> new OpStats()).add(phaseMicros, phaseBytes);
+    }
+
+    @Nonnull
+    static String getOpType(@Nonnull NodeExecStats node) {
+      String label = node.getTimelineLabel();
+      int start = label.indexOf(" = ");
+      int end = label.indexOf('(', start + 3);
+      if (start < 0 || end < 0) return node.getNodeName();
+      return label.substring(start + 3, end);
+    }
+  }
+
+  public static class OpStats {
+    private long count;
+    private long totalMicros;
+    private long maxMicros;
+    private long totalBytes;
+
+    public synchronized long getCount() {
+      return count;
+    }
+
+    public synchronized long getMaxMicros() {
+      return maxMicros;
+    }
+
+    public synchronized double getMeanMicros() {
+      return 0 == count ? 0.0 : (double) totalMicros / count;
+    }
+
+    public synchronized long getTotalBytes() {
+      return totalBytes;
+    }
+
+    public synchronized long getTotalMicros() {
+      return totalMicros;
+    }
+
+    public synchronized void add(long micros, long bytes) {
+      count++;
+      totalMicros += micros;
+      maxMicros = Math.max(maxMicros, micros);
+      totalBytes += bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "OpStats{" +
+          "count=" + count +
+          ", totalMicros=" + totalMicros +
+          ", maxMicros=" + maxMicros +
+          ", totalBytes=" + totalBytes +
+          '}';
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simiacryptus.mindseye.lang.Singleton;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.tensorflow.TFIO;
+import com.simiacryptus.mindseye.lang.tensorflow.TFResourceReaper;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefMap;
+import com.simiacryptus.tensorflow.TensorflowUtil;
+import com.simiacryptus.util.Util;
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+import org.tensorflow.Session;
+import org.tensorflow.Shape;
+import org.tensorflow.framework.AttrValue;
+import org.tensorflow.framework.GraphDef;
+import org.tensorflow.framework.NodeDef;
+import org.tensorflow.framework.TensorShapeProto;
+import org.tensorflow.op.Ops;
+import org.tensorflow.op.core.Placeholder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class TFSession extends ReferenceCountingBase {
+  private static final String GRADIENT_PREFIX = "gradient";
+  private static final String VARIABLE = "/variable";
+  private static final String VALUE = "/value";
+  private static final String ASSIGN = "/assign";
+  @Nonnull
+  public final Graph graph;
+  public final Singleton<Output<?>[]> outputSingleton = new Singleton<>();
+  @Nonnull
+  public final Session session;
+  @Nonnull
+  public final TFSessionCache.Key key;
+  private final Map<List<String>, List<String>> savedActivations = new ConcurrentHashMap<>();
+  @Nullable
+  private Object syncedVersion = null;
+  private final Map<String, Long> variableSizes = new HashMap<>();
+  private volatile long variableBytes = 0;
+  private final Map<List<String>, Output<?>[]> partialGradients = new HashMap<>();
+  private final Set<String> gradientPrefixes = ConcurrentHashMap.newKeySet();
+
+  public TFSession(@Nonnull TFSessionCache.Key key) {
+    this(key, key.getOptions());
+  }
+
+  public TFSession(@Nonnull TFSessionCache.Key key, @Nonnull TFSessionOptions options) {
+    this.key = key;
+    this.graph = new Graph();
+    GraphDef graphDef = key.getGraphDef();
+    TensorflowUtil.validate(graphDef);
+    if (key.isResidentWeights()) {
+      graph.importGraphDef(residentGraph(graphDef, key.getStateNames()).toByteArray());
+    } else {
+      graph.importGraphDef(key.getGraphDefBytes());
+    }
+    this.session = new Session(graph, options.toConfig());
+  }
+
+  public long getNativeBytes() {
+    return key.getGraphDefBytes().length + variableBytes;
+  }
+
+  @Nonnull
+  public synchronized Output<?>[] getGradients() {
+    return outputSingleton.getOrInit(() -> addGradients(getGradientPrefix(), getAllTargets()));
+  }
+
+  @Nonnull
+  public synchronized Output<?>[] getGradients(@Nonnull List<String> targets) {
+    if (targets.equals(getAllTargets())) {
+      return getGradients();
+    }
+    Output<?>[] gradients = partialGradients.get(targets);
+    if (null == gradients) {
+      gradients = addGradients(getGradientPrefix(), targets);
+      partialGradients.put(new ArrayList<>(targets), gradients);
+    }
+    return gradients;
+  }
+
+  /**
+   * Returns the forward activations the gradient for these targets reads, so a training forward can fetch them.
+   * Gradients are added to the graph on the first training forward for each target set rather than when the
+   * session is created: sessions are shared by frozen, inference-only and partially frozen layers, and each of
+   * those needs a different (or no) gradient subgraph. With {@code build} unset, nothing is added here and a
+   * target set only saves activations once a backward pass has built its gradients.
+   */
+  @Nonnull
+  public List<String> getSavedActivations(@Nonnull List<String> targets, boolean build) {
+    if (targets.isEmpty()) return Collections.emptyList();
+    List<String> saved = savedActivations.get(targets);
+    if (null == saved) {
+      if (!build) return Collections.emptyList();
+      getGradients(targets);
+      saved = savedActivations.get(targets);
+      assert saved != null;
+    }
+    return saved;
+  }
+
+  public synchronized void syncWeights(@Nonnull RefMap<String, Tensor> weights, @Nonnull Object version,
+                                       boolean invertRanks) {
+    if (version == syncedVersion) {
+      weights.freeRef();
+      return;
+    }
+    weights.forEach((name, data) -> {
+      org.tensorflow.Tensor<? extends Number> tensor = key.isFloat() ? TFIO.getFloatTensor(data, invertRanks)
+          : TFIO.getDoubleTensor(data, invertRanks);
+      try {
+        session.runner().feed(name + VALUE, tensor).addTarget(name + ASSIGN).run();
+        Long previous = variableSizes.put(name, tensor.numBytes());
+        variableBytes += tensor.numBytes() - (null == previous ? 0 : previous);
+      } finally {
+        tensor.close();
+      }
+    });
+    weights.freeRef();
+    syncedVersion = version;
+  }
+
+  @Nonnull
+  private static GraphDef residentGraph(@Nonnull GraphDef graphDef, @Nonnull List<String> stateNames) {
+    AttrValue unknownShape = AttrValue.newBuilder()
+        .setShape(TensorShapeProto.newBuilder().setUnknownRank(true)).build();
+    AttrValue noValidation = AttrValue.newBuilder().setB(false).build();
+    GraphDef.Builder builder = graphDef.toBuilder();
+    int nodeCount = builder.getNodeCount();
+    for (int i = 0; i < nodeCount; i++) {
+      NodeDef node = builder.getNode(i);
+      String name = node.getName();
+      if (!stateNames.contains(name)) continue;
+      AttrValue dtype = node.getAttrMap().get("dtype");
+      builder.setNode(i, NodeDef.newBuilder().setName(name).setOp("Identity").setDevice(node.getDevice())
+          .addInput(name + VARIABLE).putAttr("T", dtype).build());
+      builder.addNode(NodeDef.newBuilder().setName(name + VARIABLE).setOp("VariableV2").setDevice(node.getDevice())
+          .putAttr("dtype", dtype).putAttr("shape", unknownShape).build());
+      builder.addNode(NodeDef.newBuilder().setName(name + VALUE).setOp("Placeholder")
+          .putAttr("dtype", dtype).putAttr("shape", unknownShape).build());
+      builder.addNode(NodeDef.newBuilder().setName(name + ASSIGN).setOp("Assign")
+          .addInput(name + VARIABLE).addInput(name + VALUE)
+          .putAttr("T", dtype).putAttr("validate_shape", noValidation).build());
+    }
+    return builder.build();
+  }
+
+  @Nonnull
+  private synchronized Output<?>[] addGradients(@Nonnull String prefix, @Nonnull List<String> targets) {
+    String deltaOpName = key.getOutputNode() + "_delta";
+    if (null == graph.operation(deltaOpName)) {
+      Class<? extends Number> dtype = key.isFloat() ? Float.class : Double.class;
+      Ops.create(graph).withName(deltaOpName).placeholder(dtype, Placeholder.shape(Shape.unknown()));
+    }
+    gradientPrefixes.add(prefix);
+    Output<?>[] gradients = graph.addGradients(prefix,
+        new Output[]{TensorflowUtil.find(graph, key.getOutputNode()).output(0)},
+        targets.stream().map(n -> TensorflowUtil.find(graph, n).output(0)).toArray(i -> new Output[i]),
+        new Output[]{TensorflowUtil.find(graph, deltaOpName).output(0)});
+    // Lazily built gradients are first added by a backward pass; later forwards start saving activations from here
+    savedActivations.put(new ArrayList<>(targets), findSavedActivations(prefix));
+    return gradients;
+  }
+
+  @Nonnull
+  private List<String> getAllTargets() {
+    return Stream.concat(key.getInputNodes().stream(), key.getStateNames().stream()).collect(Collectors.toList());
+  }
+
+  @Nonnull
+  private String getGradientPrefix() {
+    Set<String> used = new HashSet<>(gradientPrefixes);
+    for (NodeDef node : key.getGraphDef().getNodeList()) {
+      String name = node.getName();
+      int slash = name.indexOf('/');
+      used.add(slash < 0 ? name : name.substring(0, slash));
+    }
+    // Generated scopes must not collide with user nodes, which may themselves be named like "gradient_0"
+    String prefix = GRADIENT_PREFIX;
+    for (int i = 0; used.contains(prefix); i++) {
+      prefix = GRADIENT_PREFIX + "_" + i;
+    }
+    return prefix;
+  }
+
+  private boolean isGradientNode(@Nonnull String name) {
+    int slash = name.indexOf('/');
+    return slash > 0 && gradientPrefixes.contains(name.substring(0, slash));
+  }
+
+  @Nonnull
+  private List<String> findSavedActivations(@Nonnull String prefix) {
+    GraphDef graphDef;
+    try {
+      graphDef = GraphDef.parseFrom(graph.toGraphDef());
+    } catch (InvalidProtocolBufferException e) {
+      throw Util.throwException(e);
+    }
+    Map<String, String> ops = new HashMap<>();
+    for (NodeDef node : graphDef.getNodeList()) {
+      ops.put(node.getName(), node.getOp());
+    }
+    Set<String> fed = new HashSet<>();
+    fed.addAll(key.getInputNodes());
+    fed.addAll(key.getStateNames());
+    fed.add(key.getOutputNode() + "_delta");
+    Set<String> saved = new LinkedHashSet<>();
+    for (NodeDef node : graphDef.getNodeList()) {
+      if (!node.getName().startsWith(prefix + "/")) continue;
+      for (String input : node.getInputList()) {
+        if (input.startsWith("^")) continue;
+        int colon = input.lastIndexOf(':');
+        String opName = colon < 0 ? input : input.substring(0, colon);
+        if (isGradientNode(opName) || fed.contains(opName)) continue;
+        String op = ops.get(opName);
+        if ("Const".equals(op) || "Placeholder".equals(op)) continue;
+        saved.add(colon < 0 ? input + ":0" : input);
+      }
+    }
+    return Collections.unmodifiableList(new ArrayList<>(saved));
+  }
+
+  public void _free() {
+    TFResourceReaper.INSTANCE.close(getNativeBytes(), session, graph);
+    outputSingleton.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  TFSession addRef() {
+    return (TFSession) super.addRef();
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import com.simiacryptus.util.Util;
+import org.tensorflow.framework.GraphDef;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TFSessionCache {
+  public static final TFSessionCache INSTANCE = new TFSessionCache(
+      Integer.parseInt(RefSystem.getProperty("tensorflow.sessionCache.maxEntries", "64")),
+      Long.parseLong(RefSystem.getProperty("tensorflow.sessionCache.maxBytes", Long.toString(1L << 30))));
+
+  private final LinkedHashMap<Key, TFSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private volatile int maxEntries;
+  private volatile long maxBytes;
+
+  public TFSessionCache(int maxEntries, long maxBytes) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  public long getBytes() {
+    synchronized (sessions) {
+      long bytes = 0;
+      for (TFSession session : sessions.values()) {
+        bytes += session.getNativeBytes();
+      }
+      return bytes;
+    }
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    synchronized (sessions) {
+      evict();
+    }
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+    synchronized (sessions) {
+      evict();
+    }
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int size() {
+    synchronized (sessions) {
+      return sessions.size();
+    }
+  }
+
+  @Nonnull
+  TFSession get(@Nonnull Key key) {
+    TFSession session;
+    synchronized (sessions) {
+      session = sessions.get(key);
+      if (null != session) {
+        hits.incrementAndGet();
+        session = session.addRef();
+      } else {
+        misses.incrementAndGet();
+        session = new TFSession(key);
+        sessions.put(key, session.addRef());
+      }
+      evict();
+    }
+    return session;
+  }
+
+  public void invalidate(@Nonnull Key key) {
+    synchronized (sessions) {
+      TFSession removed = sessions.remove(key);
+      if (null != removed) {
+        removed.freeRef();
+      }
+    }
+  }
+
+  public void clear() {
+    synchronized (sessions) {
+      sessions.values().forEach(session -> session.freeRef());
+      sessions.clear();
+    }
+  }
+
+  private void evict() {
+    long bytes = getBytes();
+    Iterator<Map.Entry<Key, TFSession>> iterator = sessions.entrySet().iterator();
+    while (iterator.hasNext() && sessions.size() > 1 && (sessions.size() > maxEntries || bytes > maxBytes)) {
+      TFSession eldest = iterator.next().getValue();
+      iterator.remove();
+      bytes -= eldest.getNativeBytes();
+      evictions.incrementAndGet();
+      eldest.freeRef();
+    }
+  }
+
+  public static final class Key {
+    @Nonnull
+    private final byte[] graphDef;
+    @Nonnull
+    private final String digest;
+    @Nonnull
+    private final String outputNode;
+    @Nonnull
+    private final List<String> inputNodes;
+    @Nonnull
+    private final List<String> stateNames;
+    private final boolean isFloat;
+    private final boolean residentWeights;
+    @Nullable
+    private final UUID owner;
+    @Nonnull
+    private final TFSessionOptions options;
+
+    public Key(@Nonnull GraphDef graphDef, @Nonnull String outputNode, @Nonnull List<String> inputNodes,
+               @Nonnull Collection<String> stateNames, boolean isFloat) {
+      this(graphDef, outputNode, inputNodes, stateNames, isFloat, false, null, TFSessionOptions.getGlobal());
+    }
+
+    public Key(@Nonnull GraphDef graphDef, @Nonnull String outputNode, @Nonnull List<String> inputNodes,
+               @Nonnull Collection<String> stateNames, boolean isFloat, boolean residentWeights,
+               @Nullable UUID owner, @Nonnull TFSessionOptions options) {
+      this.graphDef = graphDef.toByteArray();
+      this.digest = digest(this.graphDef);
+      this.outputNode = outputNode;
+      this.inputNodes = Collections.unmodifiableList(new ArrayList<>(inputNodes));
+      ArrayList<String> sortedStates = new ArrayList<>(stateNames);
+      Collections.sort(sortedStates);
+      this.stateNames = Collections.unmodifiableList(sortedStates);
+      this.isFloat = isFloat;
+      this.residentWeights = residentWeights && !stateNames.isEmpty();
+      this.owner = this.residentWeights ? owner : null;
+      this.options = options;
+    }
+
+    @Nonnull
+    public String getDigest() {
+      return digest;
+    }
+
+    @Nonnull
+    public GraphDef getGraphDef() {
+      try {
+        return GraphDef.parseFrom(graphDef);
+      } catch (InvalidProtocolBufferException e) {
+        throw Util.throwException(e);
+      }
+    }
+
+    @Nonnull
+    public byte[] getGraphDefBytes() {
+      return graphDef;
+    }
+
+    @Nonnull
+    public List<String> getInputNodes() {
+      return inputNodes;
+    }
+
+    @Nonnull
+    public String getOutputNode() {
+      return outputNode;
+    }
+
+    @Nonnull
+    public List<String> getStateNames() {
+      return stateNames;
+    }
+
+    @Nonnull
+    public TFSessionOptions getOptions() {
+      return options;
+    }
+
+    @Nullable
+    public UUID getOwner() {
+      return owner;
+    }
+
+    public boolean isFloat() {
+      return isFloat;
+    }
+
+    public boolean isResidentWeights() {
+      return residentWeights;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return isFloat == key.isFloat &&
+          residentWeights == key.residentWeights &&
+          Objects.equals(owner, key.owner) &&
+          options.equals(key.options) &&
+          digest.equals(key.digest) &&
+          outputNode.equals(key.outputNode) &&
+          inputNodes.equals(key.inputNodes) &&
+          stateNames.equals(key.stateNames);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(digest, outputNode, inputNodes, stateNames, isFloat, residentWeights, owner, options);
+    }
+
+    @Override
+    public String toString() {
+      return outputNode + "@" + digest.substring(0, 12);
+    }
+
+    @Nonnull
+    private static String digest(@Nonnull byte[] bytes) {
+      try {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+          sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw Util.throwException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.tensorflow.framework.ConfigProto;
+import org.tensorflow.framework.GraphOptions;
+import org.tensorflow.framework.OptimizerOptions;
+import org.tensorflow.framework.ThreadPoolOptionProto;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+
+public final class TFSessionOptions {
+  public static final String SHARED_POOL_NAME = "mindseye";
+  @Nonnull
+  private static volatile TFSessionOptions global = fromSystemProperties();
+
+  private final int intraOpThreads;
+  private final int interOpThreads;
+  private final boolean perSessionThreads;
+  private final int sharedPoolThreads;
+  @Nonnull
+  private final OptimizerOptions.Level optimizerLevel;
+  @Nonnull
+  private final OptimizerOptions.GlobalJitLevel globalJitLevel;
+  private final boolean allowSoftPlacement;
+
+  private TFSessionOptions(@Nonnull Builder builder) {
+    this.intraOpThreads = builder.intraOpThreads;
+    this.interOpThreads = builder.interOpThreads;
+    this.perSessionThreads = builder.perSessionThreads;
+    this.sharedPoolThreads = builder.sharedPoolThreads;
+    this.optimizerLevel = builder.optimizerLevel;
+    this.globalJitLevel = builder.globalJitLevel;
+    this.allowSoftPlacement = builder.allowSoftPlacement;
+  }
+
+  public boolean getAllowSoftPlacement() {
+    return allowSoftPlacement;
+  }
+
+  @Nonnull
+  public OptimizerOptions.GlobalJitLevel getGlobalJitLevel() {
+    return globalJitLevel;
+  }
+
+  public int getInterOpThreads() {
+    return interOpThreads;
+  }
+
+  public int getIntraOpThreads() {
+    return intraOpThreads;
+  }
+
+  @Nonnull
+  public OptimizerOptions.Level getOptimizerLevel() {
+    return optimizerLevel;
+  }
+
+  public boolean getPerSessionThreads() {
+    return perSessionThreads;
+  }
+
+  public int getSharedPoolThreads() {
+    return sharedPoolThreads;
+  }
+
+  @Nonnull
+  public static TFSessionOptions getGlobal() {
+    return global;
+  }
+
+  public static void setGlobal(@Nonnull TFSessionOptions options) {
+    global = options;
+  }
+
+  @Nonnull
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  @Nonnull
+  public static TFSessionOptions fromSystemProperties() {
+    return newBuilder()
+        .setIntraOpThreads(Integer.parseInt(RefSystem.getProperty("tensorflow.intraOpThreads", "0")))
+        .setInterOpThreads(Integer.parseInt(RefSystem.getProperty("tensorflow.interOpThreads", "0")))
+        .setPerSessionThreads(Boolean.parseBoolean(RefSystem.getProperty("tensorflow.perSessionThreads", "false")))
+        .setSharedPoolThreads(Integer.parseInt(RefSystem.getProperty("tensorflow.sharedPoolThreads", "0")))
+        .setOptimizerLevel(OptimizerOptions.Level
+            .valueOf(RefSystem.getProperty("tensorflow.optimizerLevel", "L1")))
+        .setGlobalJitLevel(OptimizerOptions.GlobalJitLevel
+            .valueOf(RefSystem.getProperty("tensorflow.globalJitLevel", "DEFAULT")))
+        .setAllowSoftPlacement(Boolean.parseBoolean(RefSystem.getProperty("tensorflow.allowSoftPlacement", "false")))
+        .build();
+  }
+
+  @Nonnull
+  public Builder toBuilder() {
+    return newBuilder()
+        .setIntraOpThreads(intraOpThreads)
+        .setInterOpThreads(interOpThreads)
+        .setPerSessionThreads(perSessionThreads)
+        .setSharedPoolThreads(sharedPoolThreads)
+        .setOptimizerLevel(optimizerLevel)
+        .setGlobalJitLevel(globalJitLevel)
+        .setAllowSoftPlacement(allowSoftPlacement);
+  }
+
+  @Nonnull
+  public byte[] toConfig() {
+    ConfigProto.Builder config = ConfigProto.newBuilder()
+        .setIntraOpParallelismThreads(intraOpThreads)
+        .setInterOpParallelismThreads(interOpThreads)
+        .setUsePerSessionThreads(perSessionThreads)
+        .setAllowSoftPlacement(allowSoftPlacement)
+        .setGraphOptions(GraphOptions.newBuilder()
+            .setOptimizerOptions(OptimizerOptions.newBuilder()
+                .setOptLevel(optimizerLevel)
+                .setGlobalJitLevel(globalJitLevel)));
+    if (sharedPoolThreads > 0 && !perSessionThreads) {
+      config.addSessionInterOpThreadPool(ThreadPoolOptionProto.newBuilder()
+          .setNumThreads(sharedPoolThreads)
+          .setGlobalName(SHARED_POOL_NAME));
+    }
+    return config.build().toByteArray();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    TFSessionOptions that = (TFSessionOptions) o;
+    return intraOpThreads == that.intraOpThreads &&
+        interOpThreads == that.interOpThreads &&
+        perSessionThreads == that.perSessionThreads &&
+        sharedPoolThreads == that.sharedPoolThreads &&
+        allowSoftPlacement == that.allowSoftPlacement &&
+        optimizerLevel == that.optimizerLevel &&
+        globalJitLevel == that.globalJitLevel;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(intraOpThreads, interOpThreads, perSessionThreads, sharedPoolThreads, optimizerLevel,
+        globalJitLevel, allowSoftPlacement);
+  }
+
+  @Override
+  public String toString() {
+    return "TFSessionOptions{" +
+        "intraOpThreads=" + intraOpThreads +
+        ", interOpThreads=" + interOpThreads +
+        ", perSessionThreads=" + perSessionThreads +
+        ", sharedPoolThreads=" + sharedPoolThreads +
+        ", optimizerLevel=" + optimizerLevel +
+        ", globalJitLevel=" + globalJitLevel +
+        ", allowSoftPlacement=" + allowSoftPlacement +
+        '}';
+  }
+
+  public static final class Builder {
+    private int intraOpThreads = 0;
+    private int interOpThreads = 0;
+    private boolean perSessionThreads = false;
+    private int sharedPoolThreads = 0;
+    @Nonnull
+    private OptimizerOptions.Level optimizerLevel = OptimizerOptions.Level.L1;
+    @Nonnull
+    private OptimizerOptions.GlobalJitLevel globalJitLevel = OptimizerOptions.GlobalJitLevel.DEFAULT;
+    private boolean allowSoftPlacement = false;
+
+    private Builder() {
+    }
+
+    @Nonnull
+    public Builder setAllowSoftPlacement(boolean allowSoftPlacement) {
+      this.allowSoftPlacement = allowSoftPlacement;
+      return this;
+    }
+
+    @Nonnull
+    public Builder setGlobalJitLevel(@Nonnull OptimizerOptions.GlobalJitLevel globalJitLevel) {
+      this.globalJitLevel = globalJitLevel;
+      return this;
+    }
+
+    @Nonnull
+    public Builder setInterOpThreads(int interOpThreads) {
+      this.interOpThreads = interOpThreads;
+      return this;
+    }
+
+    @Nonnull
+    public Builder setIntraOpThreads(int intraOpThreads) {
+      this.intraOpThreads = intraOpThreads;
+      return this;
+    }
+
+    @Nonnull
+    public Builder setOptimizerLevel(@Nonnull OptimizerOptions.Level optimizerLevel) {
+      this.optimizerLevel = optimizerLevel;
+      return this;
+    }
+
+    @Nonnull
+    public Builder setPerSessionThreads(boolean perSessionThreads) {
+      this.perSessionThreads = perSessionThreads;
+      return this;
+    }
+
+    @Nonnull
+    public Builder setSharedPoolThreads(int sharedPoolThreads) {
+      this.sharedPoolThreads = sharedPoolThreads;
+      return this;
+    }
+
+    @Nonnull
+    public TFSessionOptions build() {
+      return new TFSessionOptions(this);
+    }
+  }
+}
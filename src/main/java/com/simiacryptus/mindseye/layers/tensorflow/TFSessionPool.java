@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.util.Util;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+class TFSessionPool extends ReferenceCountingBase {
+  @Nonnull
+  public final TFSessionCache.Key key;
+  private final int size;
+  private final int intraOpThreads;
+  private final Semaphore permits;
+  private final Deque<TFSession> idle = new ArrayDeque<>();
+  private boolean closed = false;
+
+  public TFSessionPool(@Nonnull TFSessionCache.Key key, int size, int intraOpThreads) {
+    if (size < 1) throw new IllegalArgumentException("Pool size " + size);
+    this.key = key;
+    this.size = size;
+    this.intraOpThreads = intraOpThreads;
+    this.permits = new Semaphore(size, true);
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getQueueLength() {
+    return permits.getQueueLength();
+  }
+
+  @Nonnull
+  public TFSession checkout() {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      throw Util.throwException(e);
+    }
+    TFSession session;
+    synchronized (idle) {
+      session = idle.poll();
+    }
+    if (null == session) {
+      try {
+        session = new TFSession(key, key.getOptions().toBuilder().setIntraOpThreads(intraOpThreads).build());
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+    }
+    return session;
+  }
+
+  public void checkin(@Nonnull TFSession session) {
+    synchronized (idle) {
+      if (closed) {
+        session.freeRef();
+      } else {
+        idle.push(session);
+      }
+    }
+    permits.release();
+  }
+
+  public void _free() {
+    synchronized (idle) {
+      closed = true;
+      idle.forEach(session -> session.freeRef());
+      idle.clear();
+    }
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  TFSessionPool addRef() {
+    return (TFSessionPool) super.addRef();
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tensorflow.Tensor;
+import org.tensorflow.framework.DeviceStepStats;
+import org.tensorflow.framework.NodeExecStats;
+import org.tensorflow.framework.RunMetadata;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Logs session runs slower than a threshold along with the layer, output node and feed shapes. Log lines are
+ * limited to a number per minute; when enabled, the next run of a slow layer is traced and its slowest kernels
+ * are logged.
+ */
+public class TFSlowRunLog {
+  public static final TFSlowRunLog INSTANCE = new TFSlowRunLog(
+      Long.parseLong(RefSystem.getProperty("tensorflow.slowRun.thresholdMs", "0")),
+      Integer.parseInt(RefSystem.getProperty("tensorflow.slowRun.maxPerMinute", "6")),
+      Boolean.parseBoolean(RefSystem.getProperty("tensorflow.slowRun.traceNext", "false")));
+  private static final Logger log = LoggerFactory.getLogger(TFSlowRunLog.class);
+  private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+  private static final int TOP_NODES = 10;
+
+  private final Set<String> traceRequests = ConcurrentHashMap.newKeySet();
+  private final AtomicLong slowRuns = new AtomicLong();
+  private final AtomicLong suppressed = new AtomicLong();
+  private volatile long thresholdMs;
+  private volatile int maxPerMinute;
+  private volatile boolean traceNext;
+  private long windowStart = System.nanoTime() - WINDOW_NANOS;
+  private int windowCount = 0;
+
+  public TFSlowRunLog(long thresholdMs, int maxPerMinute, boolean traceNext) {
+    this.thresholdMs = thresholdMs;
+    this.maxPerMinute = maxPerMinute;
+    this.traceNext = traceNext;
+  }
+
+  public boolean isEnabled() {
+    return thresholdMs > 0;
+  }
+
+  public long getThresholdMs() {
+    return thresholdMs;
+  }
+
+  public void setThresholdMs(long thresholdMs) {
+    this.thresholdMs = thresholdMs;
+  }
+
+  public int getMaxPerMinute() {
+    return maxPerMinute;
+  }
+
+  public void setMaxPerMinute(int maxPerMinute) {
+    this.maxPerMinute = maxPerMinute;
+  }
+
+  public boolean isTraceNext() {
+    return traceNext;
+  }
+
+  public void setTraceNext(boolean traceNext) {
+    this.traceNext = traceNext;
+  }
+
+  public long getSlowRuns() {
+    return slowRuns.get();
+  }
+
+  public long getSuppressed() {
+    return suppressed.get();
+  }
+
+  @Nullable
+  public byte[] getRunOptions(@Nonnull String name) {
+    if (traceRequests.isEmpty() || !traceRequests.remove(name)) return null;
+    return TFProfiler.FULL_TRACE;
+  }
+
+  public boolean record(@Nonnull String name, @Nonnull String phase, long nanos, @Nonnull Supplier<String> details) {
+    long thresholdMs = this.thresholdMs;
+    if (thresholdMs <= 0 || nanos < TimeUnit.MILLISECONDS.toNanos(thresholdMs)) return false;
+    slowRuns.incrementAndGet();
+    if (!acquire()) {
+      suppressed.incrementAndGet();
+      return false;
+    }
+    long dropped = suppressed.getAndSet(0);
+    log.warn(String.format("Slow %s run of %s: %.1f ms (threshold %d ms%s); %s", phase, name, nanos / 1e6,
+        thresholdMs, dropped > 0 ? ", " + dropped + " suppressed" : "", details.get()));
+    if (traceNext) traceRequests.add(name);
+    return true;
+  }
+
+  public void recordTrace(@Nonnull String name, @Nonnull String phase, long nanos, @Nullable byte[] metadata) {
+    if (null == metadata || metadata.length == 0) return;
+    List<NodeExecStats> nodes = new ArrayList<>();
+    try {
+      for (DeviceStepStats device : RunMetadata.parseFrom(metadata).getStepStats().getDevStatsList()) {
+        nodes.addAll(device.getNodeStatsList());
+      }
+    } catch (InvalidProtocolBufferException e) {
+      log.debug("Unreadable run metadata", e);
+      return;
+    }
+    nodes.sort(Comparator.comparingLong(node -> -node.getAllEndRelMicros()));
+    StringBuilder slowest = new StringBuilder();
+    for (NodeExecStats node : nodes.subList(0, Math.min(TOP_NODES, nodes.size()))) {
+      if (slowest.length() > 0) slowest.append(", ");
+      slowest.append(node.getNodeName()).append(" (").append(TFProfiler.LayerProfile.getOpType(node))
+          .append(") ").append(node.getAllEndRelMicros()).append(" us");
+    }
+    log.warn(String.format("Traced %s run of %s: %.1f ms, %d kernels; slowest: %s", phase, name, nanos / 1e6,
+        nodes.size(), slowest));
+  }
+
+  @Nonnull
+  public static String describeFeeds(@Nonnull Map<String, Tensor<?>> feeds, @Nullable String batchNode) {
+    Tensor<?> batchTensor = null == batchNode ? null : feeds.get(batchNode);
+    long batch = null == batchTensor || batchTensor.numDimensions() == 0 ? -1 : batchTensor.shape()[0];
+    StringBuilder description = new StringBuilder();
+    new TreeMap<>(feeds).forEach((name, tensor) -> {
+      if (description.length() > 0) description.append(", ");
+      description.append(name).append(':').append(tensor.dataType()).append(Arrays.toString(tensor.shape()));
+    });
+    return "batch=" + batch + ", feeds={" + description + "}";
+  }
+
+  private synchronized boolean acquire() {
+    long now = System.nanoTime();
+    if (now - windowStart >= WINDOW_NANOS) {
+      windowStart = now;
+      windowCount = 0;
+    }
+    if (windowCount >= maxPerMinute) return false;
+    windowCount++;
+    return true;
+  }
+}
@@ -25,8 +25,11 @@ import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.layers.cudnn.*;
 import com.simiacryptus.mindseye.layers.cudnn.conv.SimpleConvolutionLayer;
+import com.simiacryptus.mindseye.layers.java.EntropyLossLayer;
 import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.layers.java.ReLuActivationLayer;
 import com.simiacryptus.mindseye.layers.tensorflow.MatMulLayer;
+import com.simiacryptus.mindseye.layers.tensorflow.ReLuLayer;
 import com.simiacryptus.mindseye.layers.tensorflow.TFLayer;
 import com.simiacryptus.mindseye.layers.tensorflow.TFLayerBase;
 import com.simiacryptus.mindseye.network.DAGNode;
@@ -37,6 +40,9 @@ import com.simiacryptus.ref.wrappers.*;
 import com.simiacryptus.tensorflow.GraphModel;
 import com.simiacryptus.tensorflow.ImageNetworkPipeline;
 import org.jetbrains.annotations.NotNull;
+import org.tensorflow.Graph;
+import org.tensorflow.Operand;
+import org.tensorflow.op.Ops;
 import org.tensorflow.framework.AttrValue;
 import org.tensorflow.framework.GraphDef;
 
@@ -109,6 +115,142 @@ public class TFConverter {
     return converted;
   }
 
+  @Nonnull
+  public PipelineNetwork lower(@Nonnull PipelineNetwork network) {
+    List<Layer> chain = TFGraphFuser.getChain(network.addRef());
+    if (null == chain) {
+      return network;
+    }
+    network.freeRef();
+    PipelineNetwork lowered = new PipelineNetwork(1);
+    int[] dims = null;
+    for (Layer layer : chain) {
+      Layer tfLayer = lower(layer.addRef(), dims);
+      dims = getOutputDims(layer, dims);
+      RefUtil.freeRef(lowered.add(tfLayer));
+    }
+    return new TFGraphFuser().fuse(lowered);
+  }
+
+  @Nonnull
+  public Layer lower(@Nonnull Layer layer) {
+    return lower(layer, null);
+  }
+
+  @Nonnull
+  public MatMulLayer getMatMulLayer(@Nonnull FullyConnectedLayer fullyConnectedLayer) {
+    int[] intputDims = fullyConnectedLayer.inputDims;
+    int[] outputDims = fullyConnectedLayer.outputDims;
+    boolean frozen = fullyConnectedLayer.isFrozen();
+    Tensor weights = fullyConnectedLayer.getWeights();
+    fullyConnectedLayer.freeRef();
+    assert weights != null;
+    int[] tfPermute = Streams
+        .concat(RefIntStream.range(0, intputDims.length).map(i -> outputDims.length + intputDims.length - 1 - i),
+            RefIntStream.range(0, outputDims.length))
+        .toArray();
+    int[] inversePermute = new int[tfPermute.length];
+    for (int i = 0; i < tfPermute.length; i++) {
+      inversePermute[tfPermute[i]] = i;
+    }
+    Tensor tfView = weights.permuteDimensions(inversePermute);
+    weights.freeRef();
+    Tensor rearranged = tfView.reshapeCast(Tensor.length(outputDims), Tensor.length(intputDims));
+    tfView.freeRef();
+    MatMulLayer matMulLayer = new MatMulLayer(intputDims, outputDims);
+    RefMap<String, Tensor> matMulWeights = matMulLayer.getWeights();
+    assert matMulWeights != null;
+    Tensor target = matMulWeights.get("weights");
+    matMulWeights.freeRef();
+    assert target != null;
+    target.set(rearranged);
+    target.freeRef();
+    matMulLayer.setFrozen(frozen);
+    return matMulLayer;
+  }
+
+  @Nonnull
+  public TFLayer getEntropyLossLayer() {
+    try (Graph graph = new Graph()) {
+      Ops ops = Ops.create(graph);
+      Operand<Double> prediction = ops.withName("input").placeholder(Double.class);
+      Operand<Double> label = ops.withName("label").placeholder(Double.class);
+      Operand<Double> entropy = ops.math.neg(ops.math.mul(label,
+          ops.math.log(ops.math.maximum(prediction, ops.constant(1e-12)))));
+      ops.withName("output").reshape(
+          ops.sum(entropy, ops.range(ops.constant(1), ops.rank(entropy), ops.constant(1))),
+          ops.constant(new long[]{-1, 1}));
+      return new TFLayer(graph.toGraphDef(), new RefHashMap<>(), "output", "input", "label");
+    }
+  }
+
+  @Nonnull
+  protected Layer lower(@Nonnull Layer layer, @Nullable int[] inputDims) {
+    if (layer instanceof FullyConnectedLayer) {
+      return getMatMulLayer((FullyConnectedLayer) layer);
+    } else if (layer instanceof com.simiacryptus.mindseye.layers.java.BiasLayer) {
+      boolean frozen = layer.isFrozen();
+      RefList<double[]> state = layer.state();
+      layer.freeRef();
+      assert state != null;
+      double[] bias = state.get(0);
+      state.freeRef();
+      int[] dims = null != inputDims && Tensor.length(inputDims) == bias.length ? inputDims : new int[]{bias.length};
+      com.simiacryptus.mindseye.layers.tensorflow.BiasLayer biasLayer = new com.simiacryptus.mindseye.layers.tensorflow.BiasLayer(dims);
+      RefMap<String, Tensor> weights = biasLayer.getWeights();
+      assert weights != null;
+      Tensor target = weights.get("bias");
+      weights.freeRef();
+      assert target != null;
+      target.set(bias);
+      target.freeRef();
+      biasLayer.setFrozen(frozen);
+      return biasLayer;
+    } else if (layer instanceof com.simiacryptus.mindseye.layers.java.SoftmaxLayer && isVector(inputDims)) {
+      layer.freeRef();
+      return new com.simiacryptus.mindseye.layers.tensorflow.SoftmaxLayer();
+    } else if (layer instanceof ReLuActivationLayer && layer.isFrozen() && isUnitScale(layer.addRef())) {
+      // A trainable scale is a learnable parameter the weightless ReLuLayer cannot carry
+      layer.freeRef();
+      return new ReLuLayer();
+    } else if (layer instanceof EntropyLossLayer) {
+      layer.freeRef();
+      return getEntropyLossLayer();
+    } else {
+      return layer;
+    }
+  }
+
+  @Nullable
+  private static int[] getOutputDims(@Nonnull Layer layer, @Nullable int[] inputDims) {
+    try {
+      if (layer instanceof FullyConnectedLayer) {
+        return ((FullyConnectedLayer) layer).outputDims;
+      } else if (layer instanceof com.simiacryptus.mindseye.layers.java.BiasLayer
+          || layer instanceof com.simiacryptus.mindseye.layers.java.SoftmaxLayer
+          || layer instanceof ReLuActivationLayer) {
+        return inputDims;
+      } else {
+        return null;
+      }
+    } finally {
+      layer.freeRef();
+    }
+  }
+
+  private static boolean isVector(@Nullable int[] dims) {
+    return null != dims && RefArrays.stream(dims).filter(x -> x != 1).count() <= 1;
+  }
+
+  private static boolean isUnitScale(@Nonnull Layer layer) {
+    RefList<double[]> state = layer.state();
+    layer.freeRef();
+    if (null == state) return true;
+    boolean unit = state.stream().allMatch(data -> RefArrays.stream(data).allMatch(x -> x == 1.0));
+    state.freeRef();
+    return unit;
+  }
+
   @Nullable
   protected DAGNode getNode(@Nonnull String id, @Nonnull PipelineNetwork network, @Nonnull GraphModel tfModel,
                             @Nonnull RefMap<String, DAGNode> map) {
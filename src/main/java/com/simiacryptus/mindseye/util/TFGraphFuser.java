@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.util;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.layers.tensorflow.FusedTFLayer;
+import com.simiacryptus.mindseye.layers.tensorflow.TFLayerBase;
+import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.ref.lang.RefUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+public class TFGraphFuser {
+
+  private int minSegment = 2;
+
+  public int getMinSegment() {
+    return minSegment;
+  }
+
+  public void setMinSegment(int minSegment) {
+    this.minSegment = minSegment;
+  }
+
+  @Nonnull
+  public PipelineNetwork fuse(@Nonnull PipelineNetwork network) {
+    List<Layer> chain = getChain(network.addRef());
+    if (null == chain) {
+      return network;
+    }
+    network.freeRef();
+    PipelineNetwork fused = new PipelineNetwork(1);
+    List<TFLayerBase> segment = new ArrayList<>();
+    for (Layer layer : chain) {
+      if (layer instanceof TFLayerBase && (segment.isEmpty()
+          ? FusedTFLayer.canFuse((TFLayerBase) layer)
+          : FusedTFLayer.canFuse(segment.get(0), (TFLayerBase) layer))) {
+        segment.add((TFLayerBase) layer);
+        continue;
+      }
+      flush(fused.addRef(), segment);
+      if (layer instanceof TFLayerBase && FusedTFLayer.canFuse((TFLayerBase) layer)) {
+        segment.add((TFLayerBase) layer);
+      } else {
+        RefUtil.freeRef(fused.add(layer));
+      }
+    }
+    flush(fused.addRef(), segment);
+    return fused;
+  }
+
+  private void flush(@Nonnull PipelineNetwork network, @Nonnull List<TFLayerBase> segment) {
+    if (segment.size() >= Math.max(2, minSegment)) {
+      RefUtil.freeRef(network.add(FusedTFLayer.fuse(new ArrayList<>(segment))));
+    } else {
+      for (TFLayerBase layer : segment) {
+        RefUtil.freeRef(network.add(layer));
+      }
+    }
+    segment.clear();
+    network.freeRef();
+  }
+
+  @Nullable
+  static List<Layer> getChain(@Nonnull PipelineNetwork network) {
+    DAGNode input = network.getInput(0);
+    UUID inputId = input.getId();
+    input.freeRef();
+    LinkedList<Layer> chain = new LinkedList<>();
+    DAGNode node = network.getHead();
+    network.freeRef();
+    while (!inputId.equals(node.getId())) {
+      DAGNode[] inputs = node.getInputs();
+      Layer layer = node.getLayer();
+      node.freeRef();
+      if (null == layer || inputs.length != 1) {
+        RefUtil.freeRef(layer);
+        RefUtil.freeRef(inputs);
+        chain.forEach(RefUtil::freeRef);
+        return null;
+      }
+      chain.addFirst(layer);
+      node = inputs[0];
+    }
+    node.freeRef();
+    return chain;
+  }
+}
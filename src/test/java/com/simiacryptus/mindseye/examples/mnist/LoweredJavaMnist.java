@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.examples.mnist;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.LayerTestBase;
+import com.simiacryptus.mindseye.util.TFConverter;
+import com.simiacryptus.notebook.NotebookOutput;
+import com.simiacryptus.notebook.NullNotebookOutput;
+import com.simiacryptus.ref.lang.RefIgnore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.tensorflow.Graph;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class LoweredJavaMnist {
+
+  public static Layer network() {
+    return network(new NullNotebookOutput());
+  }
+
+  public static Layer network(@Nonnull NotebookOutput log) {
+    PipelineNetwork javaNetwork = (PipelineNetwork) SimpleJavaMnist.network(log);
+    return log.eval(() -> {
+      return new TFConverter().lower(javaNetwork);
+    });
+  }
+
+  public static class MnistDemo extends MnistDemoBase {
+    @Override
+    protected byte[] getGraphDef() {
+      return new Graph().toGraphDef();
+    }
+
+    @Override
+    protected Layer buildModel(@Nonnull NotebookOutput log) {
+      log.p("This is the SimpleJavaMnist model lowered into a single TensorFlow graph.");
+      return network(log);
+    }
+  }
+
+  public static class LayerTest extends LayerTestBase {
+
+    private final @Nonnull
+    @RefIgnore
+    PipelineNetwork javaNetwork = (PipelineNetwork) SimpleJavaMnist.network();
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      return new TFConverter().lower((PipelineNetwork) javaNetwork.copy());
+    }
+
+    @Nullable
+    @Override
+    public Layer getReferenceLayer() {
+      return javaNetwork.copy();
+    }
+
+    @Test
+    public void matchesJavaNetwork() {
+      Tensor input = new Tensor(28, 28, 1);
+      // The initial weights are tiny; a wide input keeps a bad weight permutation from hiding behind uniform output
+      input.setByCoord(c -> 100 * (Math.random() - 0.5));
+      TensorList expected = eval(javaNetwork.copy(), input.addRef());
+      TensorList actual = eval(getLayer(), input);
+      assertEquals(expected.length(), actual.length());
+      Tensor expectedItem = expected.get(0);
+      Tensor actualItem = actual.get(0);
+      assertArrayEquals(expectedItem.getData(), actualItem.getData(), 1e-8);
+      expectedItem.freeRef();
+      actualItem.freeRef();
+      expected.freeRef();
+      actual.freeRef();
+    }
+
+    @AfterEach
+    void cleanup() {
+      javaNetwork.freeRef();
+    }
+
+    @Nonnull
+    private static TensorList eval(@Nonnull Layer layer, @Nonnull Tensor input) {
+      Result result = layer.eval(input);
+      layer.freeRef();
+      assertNotNull(result);
+      TensorList data = result.getData();
+      result.freeRef();
+      return data;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{28, 28}};
+    }
+
+  }
+
+}
@@ -26,10 +26,12 @@ import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Result;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.mindseye.lang.tensorflow.TFTraceRecorder;
 import com.simiacryptus.mindseye.lang.tensorflow.TFUtil;
 import com.simiacryptus.mindseye.layers.StochasticComponent;
 import com.simiacryptus.mindseye.layers.java.EntropyLossLayer;
 import com.simiacryptus.mindseye.layers.tensorflow.TFLayerBase;
+import com.simiacryptus.mindseye.layers.tensorflow.TFProfiler;
 import com.simiacryptus.mindseye.network.DAGNetwork;
 import com.simiacryptus.mindseye.network.SimpleLossNetwork;
 import com.simiacryptus.mindseye.opt.IterativeTrainer;
@@ -149,6 +151,11 @@ public abstract class MnistDemoBase {
         if (null != TFLayerBase.eventWriter) {
           TFLayerBase.eventWriter.setStep(currentPoint.iteration);
         }
+        if (TFTraceRecorder.INSTANCE.isEnabled()) {
+          TFTraceRecorder.INSTANCE.write(new File(RefString.format("target/traces/%s/step_%d.json",
+              MnistDemoBase.this.getClass().getSimpleName(), currentPoint.iteration)));
+          TFTraceRecorder.INSTANCE.clear();
+        }
         history.add(currentPoint.addRef());
         super.onStepComplete(currentPoint);
       }
@@ -205,6 +212,15 @@ public abstract class MnistDemoBase {
     }
 
     history.freeRef();
+    if (TFProfiler.INSTANCE.isEnabled()) {
+      log.h2("TensorFlow Op Profile");
+      log.p("Sampled per-op wall time and allocations, aggregated by layer and op type:");
+      log.eval(() -> {
+        @Nonnull final TableOutput table = new TableOutput();
+        TFProfiler.INSTANCE.getOpTable(50).forEach(row -> table.putRow(row));
+        return table;
+      });
+    }
     if (recognitionNetwork instanceof DAGNetwork) {
       ((DAGNetwork) recognitionNetwork).visitLayers(layer -> {
         if (layer instanceof StochasticComponent)
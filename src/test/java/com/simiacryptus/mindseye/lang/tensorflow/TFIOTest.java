@@ -19,6 +19,7 @@
 
 package com.simiacryptus.mindseye.lang.tensorflow;
 
+import com.google.gson.JsonElement;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.lang.TensorArray;
 import com.simiacryptus.mindseye.lang.TensorList;
@@ -31,6 +32,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TFIOTest {
 
@@ -72,6 +74,40 @@ public class TFIOTest {
     temp_19_0004.freeRef();
   }
 
+  @Test
+  public void testHighRankTensor() {
+    Tensor rank5 = new Tensor(2, 3, 2, 1, 2);
+    rank5.randomize(1.0);
+    test(rank5.addRef());
+    rank5.freeRef();
+    Tensor rank7 = new Tensor(2, 1, 2, 3, 1, 2, 2);
+    rank7.randomize(1.0);
+    test(rank7.addRef());
+    rank7.freeRef();
+  }
+
+  @Test
+  public void testLayoutMatchesInvertDimensions() {
+    testLayout(40, 35);
+    testLayout(40, 3, 35);
+    testLayout(5, 1, 33, 2);
+    testLayout(3, 4, 2, 5, 2);
+  }
+
+  private static void testLayout(int... dims) {
+    Tensor tensor = new Tensor(dims);
+    tensor.randomize(1.0);
+    Tensor inverted = tensor.invertDimensions();
+    double[] rowMajor = new double[tensor.length()];
+    TFLayout.reverseAxes(tensor.getData(), 0, rowMajor, 0, Tensor.reverse(dims));
+    assertArrayEquals(inverted.getData(), rowMajor, 0);
+    double[] columnMajor = new double[tensor.length()];
+    TFLayout.reverseAxes(rowMajor, 0, columnMajor, 0, dims);
+    assertArrayEquals(tensor.getData(), columnMajor, 0);
+    inverted.freeRef();
+    tensor.freeRef();
+  }
+
   public void test(@Nullable Tensor tensor) {
     org.tensorflow.Tensor<Double> doubleTensor = TFIO.getDoubleTensor(tensor == null ? null : tensor.addRef());
     org.tensorflow.Tensor<Float> floatTensor = TFIO.getFloatTensor(tensor == null ? null : tensor.addRef());
@@ -90,6 +126,121 @@ public class TFIOTest {
     test(newTensorList(4, 3, 3, 2));
   }
 
+  @Test
+  public void testHighRankTensorList() {
+    test(newTensorList(3, 2, 3, 2, 2));
+    test(newTensorList(2, 2, 1, 3, 2, 2, 2));
+  }
+
+  @Test
+  public void testParallelTensorList() {
+    long threshold = TFIO.getParallelThreshold();
+    TFIO.setParallelThreshold(1);
+    try {
+      test(newTensorList(9, 5, 4, 3));
+      test(newTensorList(2, 7));
+    } finally {
+      TFIO.setParallelThreshold(threshold);
+    }
+  }
+
+  @Test
+  public void testLazyTensorList() {
+    TensorArray tensorList = newTensorList(3, 4, 3, 2);
+    TFTensorList doubles = new TFTensorList(TFIO.getDoubleTensor(tensorList.addRef()));
+    assertArrayEquals(tensorList.getDimensions(), doubles.getDimensions());
+    TensorList roundTrip = TFIO.getTensorList(TFIO.getDoubleTensor(doubles.addRef()));
+    assertEquals(tensorList.addRef(), doubles, 0);
+    assertEquals(tensorList.addRef(), roundTrip, 0);
+    TFTensorList floats = new TFTensorList(TFIO.getFloatTensor(tensorList.addRef()));
+    assertEquals(tensorList, floats, tol);
+  }
+
+  @Test
+  public void testBatchTensorList() {
+    TensorArray tensorList = newTensorList(5, 3, 4, 2);
+    TFBatchTensorList batch = TFIO.getTensorList(TFIO.getDoubleTensor(tensorList.addRef()));
+    TensorList roundTrip = TFIO.getTensorList(TFIO.getFloatTensor(batch.addRef()));
+    assertEquals(tensorList.addRef(), batch, 0);
+    assertEquals(tensorList, roundTrip, tol);
+  }
+
+  @Test
+  public void testBufferArena() {
+    TFBufferArena arena = new TFBufferArena(2, 1 << 20, 1 << 20);
+    java.nio.ByteBuffer first = arena.obtain(5000);
+    RefAssert.assertEquals(5000, first.remaining());
+    arena.recycle(first);
+    java.nio.ByteBuffer second = arena.obtain(6000);
+    RefAssert.assertEquals(6000, second.remaining());
+    RefAssert.assertEquals(1, arena.getHits());
+    RefAssert.assertEquals(8192, arena.getBytesInUse());
+    arena.recycle(second);
+    RefAssert.assertEquals(0, arena.getBytesInUse());
+    RefAssert.assertEquals(8192, arena.getBytesPooled());
+  }
+
+  @Test
+  public void testBufferArenaCap() {
+    TFBufferArena arena = new TFBufferArena(4, 1 << 20, 8192);
+    java.nio.ByteBuffer first = arena.obtain(8192);
+    java.nio.ByteBuffer second = arena.obtain(8192);
+    arena.recycle(first);
+    arena.recycle(second);
+    RefAssert.assertEquals(8192, arena.getBytesPooled());
+    RefAssert.assertEquals(0, arena.getBytesInUse());
+  }
+
+  @Test
+  public void testTensorTracking() {
+    boolean tracking = TFTensor.isTracking();
+    TFTensor.setTracking(true);
+    try {
+      int leaks = TFTensor.getLeaks().size();
+      TFTensor tensor = new TFTensor(TFIO.getDoubleTensor(newTensorList(2, 3)));
+      RefAssert.assertEquals(leaks + 1, TFTensor.getLeaks().size());
+      tensor.freeRef();
+      RefAssert.assertEquals(leaks, TFTensor.getLeaks().size());
+    } finally {
+      TFTensor.setTracking(tracking);
+    }
+  }
+
+  @Test
+  public void testTraceRecorder() {
+    TFTraceRecorder recorder = TFTraceRecorder.INSTANCE;
+    boolean enabled = recorder.isEnabled();
+    recorder.setEnabled(true);
+    try {
+      recorder.clear();
+      org.tensorflow.Tensor<Double> tensor = TFIO.getDoubleTensor(newTensorList(2, 3));
+      TFIO.getTensorList(tensor).freeRef();
+      tensor.close();
+      RefAssert.assertEquals(4, recorder.getEventCount());
+      assertTrue(recorder.toJson().getAsJsonArray("traceEvents").size() >= 4);
+    } finally {
+      recorder.clear();
+      recorder.setEnabled(enabled);
+    }
+  }
+
+  @Test
+  public void testTraceRecorderCapClosesSpans() {
+    TFTraceRecorder recorder = new TFTraceRecorder(true, 3);
+    TFTraceRecorder.Span outer = recorder.begin("outer", "test");
+    TFTraceRecorder.Span inner = recorder.begin("inner", "test");
+    inner.close();
+    outer.close();
+    RefAssert.assertEquals(2, recorder.getEventCount());
+    int open = 0;
+    for (JsonElement element : recorder.toJson().getAsJsonArray("traceEvents")) {
+      String phase = element.getAsJsonObject().get("ph").getAsString();
+      if ("B".equals(phase)) open++;
+      if ("E".equals(phase)) open--;
+    }
+    RefAssert.assertEquals(0, open);
+  }
+
   @Nonnull
   public TensorArray newTensorList(int length, int... ints) {
     return new TensorArray(RefIntStream.range(0, length).mapToObj(i -> {
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.lang.tensorflow;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TFResourceReaperTest {
+
+  @Test
+  public void drainWaitsForFullQueue() {
+    TFResourceReaper reaper = new TFResourceReaper(2, false);
+    AtomicInteger closed = new AtomicInteger();
+    AutoCloseable slow = () -> {
+      Thread.sleep(20);
+      closed.incrementAndGet();
+    };
+    for (int i = 0; i < 10; i++) {
+      reaper.close(100, slow);
+    }
+    reaper.drain();
+    assertEquals(10, closed.get());
+    assertEquals(0, reaper.getPending());
+    assertEquals(0, reaper.getPendingBytes());
+    assertEquals(10, reaper.getClosed());
+  }
+
+  @Test
+  public void synchronousClosesInline() {
+    TFResourceReaper reaper = new TFResourceReaper(2, true);
+    AtomicInteger closed = new AtomicInteger();
+    reaper.close(100, closed::incrementAndGet);
+    assertEquals(1, closed.get());
+    assertEquals(0, reaper.getPending());
+    assertEquals(1, reaper.getClosed());
+  }
+}
@@ -19,10 +19,12 @@
 
 package com.simiacryptus.mindseye.layers.tensorflow;
 
+import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.ref.wrappers.RefMap;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 public class BiasLayerTest extends RawTFLayerTestBase {
 
@@ -45,4 +47,21 @@ public class BiasLayerTest extends RawTFLayerTestBase {
     return biasLayer;
   }
 
+  public static class Sharded extends BiasLayerTest {
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      TFLayerBase layer = getTfLayer();
+      layer.setPoolSize(2);
+      layer.setShardSize(1);
+      return layer;
+    }
+
+    @Nullable
+    @Override
+    public Layer getReferenceLayer() {
+      return getTfLayer();
+    }
+  }
+
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.EntropyLossLayer;
+import com.simiacryptus.mindseye.util.TFConverter;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EntropyLossLayerTest {
+
+  private static final double tol = 1e-8;
+
+  @Test
+  public void matchesJavaLayer() {
+    Tensor[] predictions = new Tensor[3];
+    Tensor[] labels = new Tensor[3];
+    for (int i = 0; i < predictions.length; i++) {
+      predictions[i] = new Tensor(10);
+      predictions[i].setByCoord(c -> 0.05 + 0.9 * Math.random());
+      labels[i] = new Tensor(10);
+      labels[i].setByCoord(c -> Math.random());
+    }
+    TensorList[] expected = evalWithGradients(new EntropyLossLayer(), copy(predictions), copy(labels));
+    TensorList[] actual = evalWithGradients(new TFConverter().getEntropyLossLayer(), predictions, labels);
+    for (int i = 0; i < expected.length; i++) {
+      assertClose(expected[i].addRef(), actual[i].addRef());
+    }
+    RefUtil.freeRef(expected);
+    RefUtil.freeRef(actual);
+  }
+
+  @Nonnull
+  private static TensorList[] evalWithGradients(@Nonnull Layer layer, @Nonnull Tensor[] predictions,
+                                                @Nonnull Tensor[] labels) {
+    TensorList[] results = new TensorList[3];
+    Result result = layer.eval(
+        new Result(new TensorArray(predictions), new DeltaCapture(results, 1)),
+        new Result(new TensorArray(labels), new DeltaCapture(results, 2)));
+    layer.freeRef();
+    assertNotNull(result);
+    results[0] = result.getData();
+    Tensor[] ones = new Tensor[results[0].length()];
+    for (int i = 0; i < ones.length; i++) {
+      ones[i] = new Tensor(results[0].getDimensions());
+      ones[i].setAll(1.0);
+    }
+    Result.Accumulator accumulator = result.getAccumulator();
+    assertNotNull(accumulator);
+    accumulator.accept(new DeltaSet<>(), new TensorArray(ones));
+    accumulator.freeRef();
+    result.freeRef();
+    assertNotNull(results[1]);
+    assertNotNull(results[2]);
+    return results;
+  }
+
+  private static void assertClose(@Nonnull TensorList expected, @Nonnull TensorList actual) {
+    assertArrayEquals(expected.getDimensions(), actual.getDimensions());
+    assertEquals(expected.length(), actual.length());
+    for (int i = 0; i < expected.length(); i++) {
+      Tensor expectedItem = expected.get(i);
+      Tensor actualItem = actual.get(i);
+      assertArrayEquals(expectedItem.getData(), actualItem.getData(), tol);
+      expectedItem.freeRef();
+      actualItem.freeRef();
+    }
+    expected.freeRef();
+    actual.freeRef();
+  }
+
+  @Nonnull
+  private static Tensor[] copy(@Nonnull Tensor[] tensors) {
+    Tensor[] copy = new Tensor[tensors.length];
+    for (int i = 0; i < tensors.length; i++) {
+      copy[i] = tensors[i].copy();
+    }
+    return copy;
+  }
+
+  private static class DeltaCapture extends Result.Accumulator {
+    private final TensorList[] slots;
+    private final int index;
+
+    public DeltaCapture(TensorList[] slots, int index) {
+      this.slots = slots;
+      this.index = index;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nullable TensorList delta) {
+      if (null != deltaBuffer)
+        deltaBuffer.freeRef();
+      RefUtil.freeRef(slots[index]);
+      slots[index] = delta;
+    }
+  }
+}
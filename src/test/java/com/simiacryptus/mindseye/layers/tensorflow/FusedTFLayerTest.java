@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.layers.java.ReLuActivationLayer;
+import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.LayerTestBase;
+import com.simiacryptus.mindseye.util.TFConverter;
+import com.simiacryptus.mindseye.util.TFGraphFuser;
+import com.simiacryptus.ref.lang.RefIgnore;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FusedTFLayerTest extends LayerTestBase {
+
+  private final @Nonnull
+  @RefIgnore
+  PipelineNetwork network = network(new BiasLayer(3, 3), new BiasLayer(3, 3));
+
+  @Nonnull
+  @Override
+  public int[][] getSmallDims() {
+    return new int[][]{{3, 3}};
+  }
+
+  @Nonnull
+  @Override
+  public Layer getLayer() {
+    return new TFGraphFuser().fuse((PipelineNetwork) network.copy());
+  }
+
+  @Nullable
+  @Override
+  public Layer getReferenceLayer() {
+    return network.copy();
+  }
+
+  @Test
+  public void nonChainUnchanged() {
+    PipelineNetwork network = new PipelineNetwork(2);
+    DAGNode input = network.getInput(0);
+    DAGNode relu = network.add(new ReLuLayer(), input);
+    DAGNode softmax = network.add(new SoftmaxLayer(), relu);
+    DAGNode label = network.getInput(1);
+    RefUtil.freeRef(network.add(new TFConverter().getEntropyLossLayer(), softmax, label));
+    PipelineNetwork fused = new TFGraphFuser().fuse(network.addRef());
+    assertSame(network, fused);
+    fused.freeRef();
+    network.freeRef();
+  }
+
+  @Test
+  public void mixedFrozenAndTrainable() {
+    BiasLayer frozen = new BiasLayer(3, 3);
+    frozen.setFrozen(true);
+    BiasLayer trainable = new BiasLayer(3, 3);
+    assertTrue(frozen.getTrainableWeights().isEmpty());
+    UUID trainableId = trainable.getTrainableWeights().get("bias");
+    PipelineNetwork network = new TFGraphFuser().fuse(network(frozen, trainable));
+    FusedTFLayer fused = getFusedLayer(network.addRef());
+    assertFalse(fused.isFrozen());
+    Map<String, UUID> weightIds = fused.getTrainableWeights();
+    assertEquals(1, weightIds.size());
+    assertEquals(trainableId, weightIds.get("fused_2/bias"));
+    fused.freeRef();
+    network.freeRef();
+  }
+
+  @Test
+  public void deltasKeyedBySourceIds() {
+    BiasLayer frozen = new BiasLayer(3, 3);
+    frozen.setFrozen(true);
+    BiasLayer trainable = new BiasLayer(3, 3);
+    UUID frozenId = UUID.nameUUIDFromBytes((frozen.getId() + "_bias").getBytes());
+    UUID trainableId = trainable.getTrainableWeights().get("bias");
+    PipelineNetwork network = new TFGraphFuser().fuse(network(frozen, trainable));
+    Tensor input = new Tensor(3, 3);
+    input.randomize(1.0);
+    Result result = network.eval(input);
+    network.freeRef();
+    assertNotNull(result);
+    TensorList data = result.getData();
+    Tensor[] ones = new Tensor[data.length()];
+    for (int i = 0; i < ones.length; i++) {
+      ones[i] = new Tensor(data.getDimensions());
+      ones[i].setAll(1.0);
+    }
+    data.freeRef();
+    DeltaSet<UUID> buffer = new DeltaSet<>();
+    Result.Accumulator accumulator = result.getAccumulator();
+    assertNotNull(accumulator);
+    accumulator.accept(buffer.addRef(), new TensorArray(ones));
+    accumulator.freeRef();
+    result.freeRef();
+    RefMap<UUID, Delta<UUID>> deltas = buffer.getMap();
+    assertTrue(deltas.containsKey(trainableId));
+    assertFalse(deltas.containsKey(frozenId));
+    deltas.freeRef();
+    buffer.freeRef();
+  }
+
+  @Test
+  public void lowerKeepsFrozenState() {
+    TFConverter converter = new TFConverter();
+    FullyConnectedLayer frozenFC = new FullyConnectedLayer(new int[]{3}, new int[]{4});
+    frozenFC.setFrozen(true);
+    Layer matMul = converter.lower(frozenFC);
+    assertTrue(matMul instanceof MatMulLayer);
+    assertTrue(matMul.isFrozen());
+    matMul.freeRef();
+    com.simiacryptus.mindseye.layers.java.BiasLayer frozenBias = new com.simiacryptus.mindseye.layers.java.BiasLayer(4);
+    frozenBias.setFrozen(true);
+    Layer bias = converter.lower(frozenBias);
+    assertTrue(bias instanceof BiasLayer);
+    assertTrue(bias.isFrozen());
+    bias.freeRef();
+    Layer trainableBias = converter.lower(new com.simiacryptus.mindseye.layers.java.BiasLayer(4));
+    assertFalse(trainableBias.isFrozen());
+    trainableBias.freeRef();
+
+    ReLuActivationLayer trainableRelu = new ReLuActivationLayer();
+    trainableRelu.setFrozen(false);
+    Layer keptRelu = converter.lower(trainableRelu.addRef());
+    assertSame(trainableRelu, keptRelu);
+    keptRelu.freeRef();
+    trainableRelu.freeRef();
+    ReLuActivationLayer frozenRelu = new ReLuActivationLayer();
+    frozenRelu.setFrozen(true);
+    Layer loweredRelu = converter.lower(frozenRelu);
+    assertTrue(loweredRelu instanceof ReLuLayer);
+    loweredRelu.freeRef();
+
+    PipelineNetwork network = new PipelineNetwork(1);
+    FullyConnectedLayer fc = new FullyConnectedLayer(new int[]{3}, new int[]{4});
+    fc.setFrozen(true);
+    RefUtil.freeRef(network.add(fc));
+    com.simiacryptus.mindseye.layers.java.BiasLayer javaBias = new com.simiacryptus.mindseye.layers.java.BiasLayer(4);
+    javaBias.setFrozen(true);
+    RefUtil.freeRef(network.add(javaBias));
+    FusedTFLayer fused = getFusedLayer(converter.lower(network));
+    assertTrue(fused.isFrozen());
+    assertTrue(fused.getTrainableWeights().isEmpty());
+    fused.freeRef();
+  }
+
+  @AfterEach
+  void cleanup() {
+    network.freeRef();
+  }
+
+  @Nonnull
+  private static FusedTFLayer getFusedLayer(@Nonnull PipelineNetwork network) {
+    DAGNode head = network.getHead();
+    network.freeRef();
+    Layer layer = head.getLayer();
+    head.freeRef();
+    assertTrue(layer instanceof FusedTFLayer);
+    return (FusedTFLayer) layer;
+  }
+
+  @Nonnull
+  private static PipelineNetwork network(@Nonnull BiasLayer first, @Nonnull BiasLayer second) {
+    PipelineNetwork network = new PipelineNetwork(1);
+    randomize(first.addRef());
+    randomize(second.addRef());
+    RefUtil.freeRef(network.add(first));
+    RefUtil.freeRef(network.add(new ReLuLayer()));
+    RefUtil.freeRef(network.add(second));
+    RefUtil.freeRef(network.add(new SoftmaxLayer()));
+    return network;
+  }
+
+  private static void randomize(@Nonnull BiasLayer biasLayer) {
+    RefMap<String, Tensor> weights = biasLayer.getWeights();
+    biasLayer.freeRef();
+    assert weights != null;
+    Tensor bias = weights.get("bias");
+    assert bias != null;
+    bias.setByCoord(c -> Math.random() - 0.5);
+    bias.freeRef();
+    weights.freeRef();
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TFBatchSchedulerTest {
+
+  @Test
+  public void coalescesConcurrentRequests() {
+    ReLuLayer layer = new ReLuLayer();
+    layer.setInferenceOnly(true);
+    TFBatchScheduler scheduler = new TFBatchScheduler(layer, 16, 20, TimeUnit.MILLISECONDS);
+    IntStream.range(0, 32).parallel().forEach(i -> {
+      Tensor input = new Tensor(3, 3, 1);
+      input.randomize(1.0);
+      double[] expected = input.getData().clone();
+      for (int j = 0; j < expected.length; j++) {
+        expected[j] = Math.max(0, expected[j]);
+      }
+      TensorList output = scheduler.eval(new TensorArray(input));
+      assertEquals(1, output.length());
+      Tensor tensor = output.get(0);
+      assertArrayEquals(expected, tensor.getData(), 1e-9);
+      tensor.freeRef();
+      output.freeRef();
+    });
+    TFBatchScheduler.Histogram batchSizes = scheduler.getBatchSizes();
+    assertTrue(scheduler.getBatches() < 32, Long.toString(scheduler.getBatches()));
+    assertEquals(scheduler.getBatches(), batchSizes.getCount());
+    assertEquals(32, Math.round(batchSizes.getMean() * batchSizes.getCount()));
+    assertTrue(batchSizes.getPercentile(1.0) <= 16);
+    scheduler.freeRef();
+  }
+
+  @Test
+  public void expiredRequestsFail() {
+    ReLuLayer layer = new ReLuLayer();
+    layer.setInferenceOnly(true);
+    TFBatchScheduler scheduler = new TFBatchScheduler(layer, 4, 1, TimeUnit.SECONDS);
+    Tensor input = new Tensor(3, 3, 1);
+    Throwable e = assertThrows(Exception.class,
+        () -> scheduler.eval(new TensorArray(input), 1, TimeUnit.NANOSECONDS));
+    while (!(e instanceof TimeoutException) && null != e.getCause()) {
+      e = e.getCause();
+    }
+    assertTrue(e instanceof TimeoutException, e.toString());
+    scheduler.freeRef();
+  }
+
+  @Test
+  public void freeFailsFillingBatch() throws InterruptedException {
+    ReLuLayer layer = new ReLuLayer();
+    layer.setInferenceOnly(true);
+    TFBatchScheduler scheduler = new TFBatchScheduler(layer, 16, 1, TimeUnit.MINUTES);
+    List<CompletableFuture<TensorList>> futures = IntStream.range(0, 3)
+        .mapToObj(i -> CompletableFuture.supplyAsync(() -> scheduler.eval(new TensorArray(new Tensor(3, 3, 1)))))
+        .collect(Collectors.toList());
+    Thread.sleep(500);
+    scheduler.freeRef();
+    for (CompletableFuture<TensorList> future : futures) {
+      ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+      Throwable cause = e;
+      while (!(cause instanceof IllegalStateException) && null != cause.getCause()) {
+        cause = cause.getCause();
+      }
+      assertTrue(cause instanceof IllegalStateException, e.toString());
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.util.TFConverter;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefMap;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TFLayerBaseTest {
+
+  private static final double tol = 1e-8;
+
+  @Test
+  public void shardedMatchesUnsharded() {
+    Tensor[] inputs = randomInputs(8, 3, 3);
+    BiasLayer layer = newBiasLayer();
+    Backprop expected = backprop(layer.addRef(), inputs, true);
+    Backprop expectedDead = backprop(layer.addRef(), inputs, false);
+    layer.setPoolSize(2);
+    layer.setShardSize(2);
+    Backprop actual = backprop(layer.addRef(), inputs, true);
+    Backprop actualDead = backprop(layer, inputs, false);
+    expected.assertClose(actual);
+    assertNull(actualDead.inputDeltas[0]);
+    expectedDead.assertClose(actualDead);
+    RefUtil.freeRef(inputs);
+  }
+
+  @Test
+  public void residentMatchesNonResident() {
+    Tensor[] inputs = randomInputs(4, 3, 3);
+    BiasLayer resident = newBiasLayer();
+    resident.setResidentWeights(true);
+    BiasLayer reference = (BiasLayer) resident.copy();
+    reference.setResidentWeights(false);
+    for (int step = 0; step < 3; step++) {
+      Backprop expected = backprop(reference.addRef(), inputs, true);
+      Backprop actual = backprop(resident.addRef(), inputs, true);
+      // Apply the update the way an optimizer would, writing into each layer's weight arrays in place
+      expected.deltas.accumulate(1.0);
+      actual.deltas.accumulate(1.0);
+      expected.assertClose(actual);
+    }
+    double offset = Math.random();
+    setBias(resident.addRef(), offset);
+    setBias(reference.addRef(), offset);
+    Backprop expected = backprop(reference, inputs, true);
+    Backprop actual = backprop(resident, inputs, true);
+    expected.assertClose(actual);
+    RefUtil.freeRef(inputs);
+  }
+
+  @Test
+  public void partialGradientsMatchFull() {
+    Tensor[] predictions = randomInputs(4, 5);
+    for (Tensor prediction : predictions) {
+      prediction.setByCoord(c -> 0.05 + 0.9 * Math.random());
+    }
+    Tensor[] labels = randomInputs(4, 5);
+    Tensor[][] inputs = {predictions, labels};
+    Backprop full = backprop(new TFConverter().getEntropyLossLayer(), inputs, true, true);
+    TFLayer frozen = new TFConverter().getEntropyLossLayer();
+    frozen.setFrozen(true);
+    Backprop partial = backprop(frozen, inputs, true, false);
+    assertNotNull(partial.inputDeltas[0]);
+    assertNull(partial.inputDeltas[1]);
+    assertClose(full.inputDeltas[0].addRef(), partial.inputDeltas[0].addRef());
+    full.free();
+    partial.free();
+
+    Tensor[] biasInputs = randomInputs(4, 3, 3);
+    BiasLayer layer = newBiasLayer();
+    full = backprop(layer.addRef(), biasInputs, true);
+    layer.setFrozen(true);
+    partial = backprop(layer, biasInputs, true);
+    RefMap<UUID, Delta<UUID>> weightDeltas = partial.deltas.getMap();
+    assertEquals(0, weightDeltas.size());
+    weightDeltas.freeRef();
+    assertClose(full.inputDeltas[0].addRef(), partial.inputDeltas[0].addRef());
+    full.free();
+    partial.free();
+    RefUtil.freeRef(predictions);
+    RefUtil.freeRef(labels);
+    RefUtil.freeRef(biasInputs);
+  }
+
+  @Test
+  public void inferenceBuildsNoGradients() {
+    Tensor[] inputs = randomInputs(4, 3, 3);
+    BiasLayer frozen = newBiasLayer();
+    frozen.setFrozen(true);
+    // Resident weights key the cached session to this layer, so no other test's gradients can show up in it
+    frozen.setResidentWeights(true);
+    assertInference(frozen, inputs, false);
+    ReLuLayer inferenceOnly = new ReLuLayer();
+    inferenceOnly.setInferenceOnly(true);
+    inferenceOnly.setResidentWeights(true);
+    assertInference(inferenceOnly, inputs, true);
+    RefUtil.freeRef(inputs);
+  }
+
+  private static void assertInference(@Nonnull TFLayerBase layer, @Nonnull Tensor[] inputs, boolean alive) {
+    Backprop backprop = backprop(layer.addRef(), inputs, alive);
+    assertNull(backprop.inputDeltas[0]);
+    RefMap<UUID, Delta<UUID>> weightDeltas = backprop.deltas.getMap();
+    assertEquals(0, weightDeltas.size());
+    weightDeltas.freeRef();
+    backprop.free();
+    TFSession session = TFSessionCache.INSTANCE.get(layer.getSessionKey());
+    assertNull(session.graph.operation(layer.getOutputNode() + "_delta"));
+    session.freeRef();
+    layer.freeRef();
+  }
+
+  private static void setBias(@Nonnull BiasLayer layer, double offset) {
+    RefMap<String, Tensor> weights = layer.getWeights();
+    layer.freeRef();
+    assert weights != null;
+    Tensor bias = weights.get("bias");
+    assert bias != null;
+    bias.setByCoord(c -> offset + c.getIndex());
+    bias.freeRef();
+    weights.freeRef();
+  }
+
+  @Nonnull
+  static BiasLayer newBiasLayer() {
+    BiasLayer layer = new BiasLayer(3, 3);
+    RefMap<String, Tensor> weights = layer.getWeights();
+    assert weights != null;
+    Tensor bias = weights.get("bias");
+    assert bias != null;
+    bias.setByCoord(c -> Math.random() - 0.5);
+    bias.freeRef();
+    weights.freeRef();
+    return layer;
+  }
+
+  @Nonnull
+  static Tensor[] randomInputs(int length, @Nonnull int... dims) {
+    Tensor[] inputs = new Tensor[length];
+    for (int i = 0; i < length; i++) {
+      inputs[i] = new Tensor(dims);
+      inputs[i].setByCoord(c -> Math.random() - 0.5);
+    }
+    return inputs;
+  }
+
+  @Nonnull
+  static Backprop backprop(@Nonnull Layer layer, @Nonnull Tensor[] inputs, boolean alive) {
+    return backprop(layer, new Tensor[][]{inputs}, alive);
+  }
+
+  /**
+   * Evaluates the layer on copies of the inputs and backpropagates a unit delta, capturing the output, the
+   * deltas reaching each input and the weight deltas.
+   */
+  @Nonnull
+  static Backprop backprop(@Nonnull Layer layer, @Nonnull Tensor[][] inputs, @Nonnull boolean... alive) {
+    TensorList[] inputDeltas = new TensorList[inputs.length];
+    Result[] results = new Result[inputs.length];
+    for (int i = 0; i < inputs.length; i++) {
+      Tensor[] copies = new Tensor[inputs[i].length];
+      for (int j = 0; j < copies.length; j++) {
+        copies[j] = inputs[i][j].copy();
+      }
+      results[i] = new Result(new TensorArray(copies), new DeltaCapture(inputDeltas, i), alive[i]);
+    }
+    Result result = layer.eval(results);
+    layer.freeRef();
+    assertNotNull(result);
+    TensorList output = result.getData();
+    Tensor[] ones = new Tensor[output.length()];
+    for (int i = 0; i < ones.length; i++) {
+      ones[i] = new Tensor(output.getDimensions());
+      ones[i].setAll(1.0);
+    }
+    DeltaSet<UUID> deltas = new DeltaSet<>();
+    Result.Accumulator accumulator = result.getAccumulator();
+    assertNotNull(accumulator);
+    accumulator.accept(deltas.addRef(), new TensorArray(ones));
+    accumulator.freeRef();
+    result.freeRef();
+    return new Backprop(output, inputDeltas, deltas);
+  }
+
+  static void assertClose(@Nonnull TensorList expected, @Nonnull TensorList actual) {
+    assertArrayEquals(expected.getDimensions(), actual.getDimensions());
+    assertEquals(expected.length(), actual.length());
+    for (int i = 0; i < expected.length(); i++) {
+      Tensor expectedItem = expected.get(i);
+      Tensor actualItem = actual.get(i);
+      assertArrayEquals(expectedItem.getData(), actualItem.getData(), tol);
+      expectedItem.freeRef();
+      actualItem.freeRef();
+    }
+    expected.freeRef();
+    actual.freeRef();
+  }
+
+  static class Backprop {
+    @Nonnull
+    final TensorList output;
+    @Nonnull
+    final TensorList[] inputDeltas;
+    @Nonnull
+    final DeltaSet<UUID> deltas;
+
+    Backprop(@Nonnull TensorList output, @Nonnull TensorList[] inputDeltas, @Nonnull DeltaSet<UUID> deltas) {
+      this.output = output;
+      this.inputDeltas = inputDeltas;
+      this.deltas = deltas;
+    }
+
+    /**
+     * Asserts the other run produced the same output, input deltas and weight deltas, then frees both.
+     */
+    void assertClose(@Nonnull Backprop other) {
+      TFLayerBaseTest.assertClose(output.addRef(), other.output.addRef());
+      assertEquals(inputDeltas.length, other.inputDeltas.length);
+      for (int i = 0; i < inputDeltas.length; i++) {
+        if (null == inputDeltas[i]) {
+          assertNull(other.inputDeltas[i]);
+        } else {
+          assertNotNull(other.inputDeltas[i]);
+          TFLayerBaseTest.assertClose(inputDeltas[i].addRef(), other.inputDeltas[i].addRef());
+        }
+      }
+      RefMap<UUID, Delta<UUID>> expectedMap = deltas.getMap();
+      RefMap<UUID, Delta<UUID>> actualMap = other.deltas.getMap();
+      assertEquals(expectedMap.size(), actualMap.size());
+      expectedMap.forEach((id, delta) -> {
+        Delta<UUID> actualDelta = actualMap.get(id);
+        assertNotNull(actualDelta, id.toString());
+        assertArrayEquals(delta.getDelta(), actualDelta.getDelta(), tol);
+        actualDelta.freeRef();
+        delta.freeRef();
+      });
+      expectedMap.freeRef();
+      actualMap.freeRef();
+      free();
+      other.free();
+    }
+
+    void free() {
+      output.freeRef();
+      RefUtil.freeRef(inputDeltas);
+      deltas.freeRef();
+    }
+  }
+
+  private static class DeltaCapture extends Result.Accumulator {
+    private final TensorList[] slots;
+    private final int index;
+
+    public DeltaCapture(TensorList[] slots, int index) {
+      this.slots = slots;
+      this.index = index;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nullable TensorList delta) {
+      if (null != deltaBuffer)
+        deltaBuffer.freeRef();
+      RefUtil.freeRef(slots[index]);
+      slots[index] = delta;
+    }
+  }
+}
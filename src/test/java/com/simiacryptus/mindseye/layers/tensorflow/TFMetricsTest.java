@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TFMetricsTest {
+
+  @Test
+  public void recordsLayerMetrics() {
+    TFMetricRegistry registry = TFMetrics.getRegistry();
+    TFJmxMetricRegistry jmx = new TFJmxMetricRegistry(null, true);
+    TFMetrics.setRegistry(jmx);
+    try {
+      ReLuLayer layer = new ReLuLayer();
+      Tensor input = new Tensor(3, 3, 1);
+      input.randomize(1.0);
+      Result result = layer.eval(input);
+      assertNotNull(result);
+      result.freeRef();
+      Map<String, Number> snapshot = jmx.getSnapshot("ReLuLayer", layer.getId().toString());
+      assertEquals(1L, snapshot.get("eval.count"));
+      assertEquals(1L, snapshot.get("forward.run.count"));
+      assertTrue(snapshot.get("bytes.fed").longValue() > 0);
+      assertTrue(snapshot.get("bytes.fetched").longValue() > 0);
+      assertTrue(jmx.getGlobalSnapshot().containsKey("sessionCache.hits"));
+      String layerId = layer.getId().toString();
+      layer.freeRef();
+      assertTrue(jmx.getSnapshot("ReLuLayer", layerId).isEmpty());
+      assertEquals(1L, jmx.getSnapshot("ReLuLayer").get("eval.count"));
+    } finally {
+      TFMetrics.setRegistry(registry);
+    }
+  }
+
+  @Test
+  public void perLayerMetricsAreOptIn() {
+    TFMetricRegistry registry = TFMetrics.getRegistry();
+    TFJmxMetricRegistry jmx = new TFJmxMetricRegistry(null, false);
+    TFMetrics.setRegistry(jmx);
+    try {
+      ReLuLayer layer = new ReLuLayer();
+      Tensor input = new Tensor(3, 3, 1);
+      input.randomize(1.0);
+      Result result = layer.eval(input);
+      assertNotNull(result);
+      result.freeRef();
+      assertTrue(jmx.getSnapshot("ReLuLayer", layer.getId().toString()).isEmpty());
+      assertTrue(jmx.getSnapshot("ReLuLayer").get("eval.count").longValue() >= 1);
+      layer.freeRef();
+    } finally {
+      TFMetrics.setRegistry(registry);
+    }
+  }
+
+  @Test
+  public void timerPercentiles() {
+    TFJmxMetricRegistry.Timer timer = new TFJmxMetricRegistry.Timer();
+    for (int i = 1; i <= 100; i++) {
+      timer.record(i * 1000L);
+    }
+    assertEquals(100, timer.getCount());
+    long p50 = timer.getPercentileNanos(0.5);
+    assertTrue(p50 >= 50000 && p50 < 57000, Long.toString(p50));
+    assertEquals(100000, timer.getPercentileNanos(1.0));
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import org.junit.jupiter.api.Test;
+import org.tensorflow.framework.AllocatorMemoryUsed;
+import org.tensorflow.framework.DeviceStepStats;
+import org.tensorflow.framework.NodeExecStats;
+import org.tensorflow.framework.StepStats;
+
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TFProfilerTest {
+
+  @Test
+  public void aggregatesStepStats() {
+    TFProfiler.LayerProfile profile = new TFProfiler.LayerProfile(UUID.randomUUID(), "Test");
+    StepStats stepStats = StepStats.newBuilder().addDevStats(DeviceStepStats.newBuilder()
+        .addNodeStats(node("a", "MatMul", 30, 1024))
+        .addNodeStats(node("b", "MatMul", 10, 0))
+        .addNodeStats(node("c", "Relu", 5, 256))).build();
+    profile.record("forward", stepStats);
+    Map<String, TFProfiler.OpStats> byOpType = profile.getByOpType();
+    assertEquals(2, byOpType.get("MatMul").getCount());
+    assertEquals(40, byOpType.get("MatMul").getTotalMicros());
+    assertEquals(1024, byOpType.get("MatMul").getTotalBytes());
+    assertEquals(5, profile.getByNode().get("c").getTotalMicros());
+    assertEquals(45, profile.getByPhase().get("forward").getTotalMicros());
+  }
+
+  @Test
+  public void samplesLayerRuns() {
+    double sampleRate = TFProfiler.INSTANCE.getSampleRate();
+    TFProfiler.INSTANCE.setSampleRate(1.0);
+    try {
+      ReLuLayer layer = new ReLuLayer();
+      Tensor input = new Tensor(3, 3, 1);
+      input.randomize(1.0);
+      Result result = layer.eval(input);
+      assertNotNull(result);
+      result.freeRef();
+      TFProfiler.LayerProfile profile = layer.getProfile();
+      assertFalse(profile.getByNode().isEmpty());
+      assertEquals(1, profile.getByPhase().get("forward").getCount());
+      layer.freeRef();
+    } finally {
+      TFProfiler.INSTANCE.setSampleRate(sampleRate);
+    }
+  }
+
+  private static NodeExecStats node(String name, String op, long micros, long bytes) {
+    return NodeExecStats.newBuilder().setNodeName(name).setAllEndRelMicros(micros)
+        .setTimelineLabel(name + " = " + op + "(input)")
+        .addMemory(AllocatorMemoryUsed.newBuilder().setTotalBytes(bytes)).build();
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import org.junit.jupiter.api.Test;
+import org.tensorflow.framework.ConfigProto;
+import org.tensorflow.framework.OptimizerOptions;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TFSessionCacheTest {
+
+  @Test
+  public void sharedAcrossInstances() {
+    ReLuLayer a = new ReLuLayer();
+    ReLuLayer b = new ReLuLayer();
+    assertEquals(a.getSessionKey(), b.getSessionKey());
+    TFSessionCache cache = TFSessionCache.INSTANCE;
+    eval(a.addRef());
+    long hits = cache.getHits();
+    long misses = cache.getMisses();
+    eval(b.addRef());
+    eval(a.addRef());
+    assertEquals(hits + 2, cache.getHits());
+    assertEquals(misses, cache.getMisses());
+    a.freeRef();
+    b.freeRef();
+  }
+
+  @Test
+  public void invalidatedByHyperparameters() {
+    Conv2DLayer layer = new Conv2DLayer(3, 3, 1, 1);
+    TFSessionCache.Key key = layer.getSessionKey();
+    assertEquals(key, layer.getSessionKey());
+    layer.setStrideX(2);
+    assertNotEquals(key, layer.getSessionKey());
+    layer.freeRef();
+  }
+
+  @Test
+  public void keyedBySessionOptions() throws InvalidProtocolBufferException {
+    ReLuLayer a = new ReLuLayer();
+    ReLuLayer b = new ReLuLayer();
+    TFSessionOptions options = TFSessionOptions.getGlobal().toBuilder()
+        .setIntraOpThreads(1)
+        .setInterOpThreads(1)
+        .setOptimizerLevel(OptimizerOptions.Level.L0)
+        .setAllowSoftPlacement(true)
+        .build();
+    b.setSessionOptions(options);
+    assertNotEquals(a.getSessionKey(), b.getSessionKey());
+    assertEquals(options, b.getSessionKey().getOptions());
+    ConfigProto config = ConfigProto.parseFrom(b.getSessionKey().getOptions().toConfig());
+    assertEquals(1, config.getIntraOpParallelismThreads());
+    assertEquals(1, config.getInterOpParallelismThreads());
+    assertEquals(OptimizerOptions.Level.L0, config.getGraphOptions().getOptimizerOptions().getOptLevel());
+    assertTrue(config.getAllowSoftPlacement());
+    TFSessionCache cache = TFSessionCache.INSTANCE;
+    eval(a.addRef());
+    long misses = cache.getMisses();
+    eval(b.addRef());
+    assertEquals(misses + 1, cache.getMisses());
+    b.setSessionOptions(null);
+    assertEquals(a.getSessionKey(), b.getSessionKey());
+    a.freeRef();
+    b.freeRef();
+  }
+
+  private static void eval(ReLuLayer layer) {
+    Tensor input = new Tensor(3, 3, 1);
+    input.randomize(1.0);
+    Result result = layer.eval(input);
+    layer.freeRef();
+    assertNotNull(result);
+    result.freeRef();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.tensorflow;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TFSlowRunLogTest {
+
+  @Test
+  public void rateLimitsSlowRuns() {
+    TFSlowRunLog slowRunLog = new TFSlowRunLog(10, 2, false);
+    long fast = TimeUnit.MILLISECONDS.toNanos(5);
+    long slow = TimeUnit.MILLISECONDS.toNanos(50);
+    assertFalse(slowRunLog.record("layer", "forward", fast, () -> fail("Fast runs are not described")));
+    assertTrue(slowRunLog.record("layer", "forward", slow, () -> "details"));
+    assertTrue(slowRunLog.record("layer", "forward", slow, () -> "details"));
+    assertFalse(slowRunLog.record("layer", "forward", slow, () -> fail("Suppressed runs are not described")));
+    assertEquals(3, slowRunLog.getSlowRuns());
+    assertEquals(1, slowRunLog.getSuppressed());
+  }
+
+  @Test
+  public void tracesNextRun() {
+    TFSlowRunLog slowRunLog = new TFSlowRunLog(10, 10, true);
+    assertNull(slowRunLog.getRunOptions("layer"));
+    assertTrue(slowRunLog.record("layer", "backward", TimeUnit.MILLISECONDS.toNanos(50), () -> "details"));
+    assertNull(slowRunLog.getRunOptions("other"));
+    assertNotNull(slowRunLog.getRunOptions("layer"));
+    assertNull(slowRunLog.getRunOptions("layer"));
+  }
+
+  @Test
+  public void disabledByDefault() {
+    TFSlowRunLog slowRunLog = new TFSlowRunLog(0, 10, true);
+    assertFalse(slowRunLog.isEnabled());
+    assertFalse(slowRunLog.record("layer", "forward", TimeUnit.SECONDS.toNanos(10), () -> "details"));
+    assertEquals(0, slowRunLog.getSlowRuns());
+  }
+}